@@ -1,19 +1,47 @@
 package felix.parser.glr;
 
 import java.text.ParseException;
+import java.util.ArrayList;
 
 import felix.parser.glr.parsetree.Node;
+import felix.parser.glr.parsetree.ParseForest;
 
 public class AmbiguousInputException extends ParseException {
 	private static final long serialVersionUID = -1801299653864584345L;
-	private final Node[] alternatives;
+	private final transient ParseForest forest;
+	private Node[] alternatives;
 
 	public AmbiguousInputException(Node[] alternatives) {
 		super("Input can be parsed in "+alternatives.length+" different ways.", alternatives[0].getFileRange().getEndOffset());
 		this.alternatives = alternatives;
+		this.forest = null;
 	}
 
+	public AmbiguousInputException(ParseForest forest) {
+		super("Input can be parsed in "+forest.count()+" different ways.", forest.root.getFileRange().getEndOffset());
+		this.forest = forest;
+	}
+
+	/**
+	 * Get the forest holding every parse of the input, or null if this was constructed from a list of trees.
+	 */
+	public ParseForest getForest() {
+		return forest;
+	}
+
+	/**
+	 * Get every parse of the input as a separate tree.  When this came from a forest the
+	 * trees are built on the first call, which takes time and memory in proportion to the
+	 * number of trees; use getForest() to avoid that.
+	 */
 	public Node[] getAlternatives() {
+		if(alternatives == null) {
+			ArrayList<Node> trees = new ArrayList<>();
+			for(Node tree : forest) {
+				trees.add(tree);
+			}
+			alternatives = trees.toArray(new Node[trees.size()]);
+		}
 		return alternatives;
 	}
 }
@@ -0,0 +1,62 @@
+package felix.parser.glr;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on how much work a parse may do before it gives up with a
+ * ParseBudgetExceededException.  A very ambiguous grammar can make the number of live
+ * stack heads and packed derivations grow quickly with the length of the input, so
+ * parses of untrusted input should be given a budget.
+ * <p>
+ * Every limit is off until it is set.  A budget can be shared by several parses, each
+ * of which counts against it separately; cancel() stops all the parses using it, so
+ * give a parse its own budget if it should be cancelled by itself.
+ */
+public class ParseBudget {
+	/** Most stack heads alive at once, counting every frontier not yet finished */
+	public int maxHeads = Integer.MAX_VALUE;
+	/** Most parser actions (shifts, reductions and accepts) to apply */
+	public long maxActions = Long.MAX_VALUE;
+	/** Most nodes to push onto the stack, including derivations packed into existing nodes */
+	public long maxNodes = Long.MAX_VALUE;
+	/** Longest time a parse may take, in nanoseconds */
+	public long maxNanos = Long.MAX_VALUE;
+
+	private volatile boolean cancelled;
+
+	public ParseBudget() {
+		super();
+	}
+
+	public ParseBudget heads(int max) {
+		this.maxHeads = max;
+		return this;
+	}
+
+	public ParseBudget actions(long max) {
+		this.maxActions = max;
+		return this;
+	}
+
+	public ParseBudget nodes(long max) {
+		this.maxNodes = max;
+		return this;
+	}
+
+	public ParseBudget time(long max, TimeUnit unit) {
+		this.maxNanos = unit.toNanos(max);
+		return this;
+	}
+
+	/**
+	 * Ask the parses using this budget to stop.  This can be called from any thread; the
+	 * parses notice it within a few hundred actions.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
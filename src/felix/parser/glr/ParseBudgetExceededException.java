@@ -0,0 +1,44 @@
+package felix.parser.glr;
+
+import java.text.ParseException;
+
+import felix.parser.util.FilePos;
+
+/**
+ * Thrown when a parse used up part of its ParseBudget, or the budget was cancelled.
+ * It records how far the parse got and how much it had used by then.
+ */
+public class ParseBudgetExceededException extends ParseException {
+	private static final long serialVersionUID = 2945208771516416734L;
+
+	public enum Limit { HEADS, ACTIONS, NODES, TIME, CANCELLED }
+
+	public final Limit limit;
+	/** Position of the frontier being processed when the parse stopped */
+	public final transient FilePos position;
+	/** Most stack heads that were alive at once */
+	public final int peakHeads;
+	public final long actions;
+	public final long nodes;
+	public final long elapsedNanos;
+
+	public ParseBudgetExceededException(Limit limit, FilePos position, int peakHeads, long actions, long nodes, long elapsedNanos) {
+		super(message(limit)+" at "+position+" (peak heads "+peakHeads+", actions "+actions+", nodes "+nodes+", "+(elapsedNanos / 1000000)+"ms)", position.offset);
+		this.limit = limit;
+		this.position = position;
+		this.peakHeads = peakHeads;
+		this.actions = actions;
+		this.nodes = nodes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	private static String message(Limit limit) {
+		switch(limit) {
+		case HEADS: return "Too many live stack heads";
+		case ACTIONS: return "Too many parser actions";
+		case NODES: return "Too many nodes";
+		case TIME: return "Parse took too long";
+		default: return "Parse cancelled";
+		}
+	}
+}
@@ -1,61 +1,485 @@
 package felix.parser.glr;
 
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
 import felix.parser.glr.automaton.Automaton;
+import felix.parser.glr.automaton.ParseSession;
 import felix.parser.glr.automaton.State;
+import felix.parser.glr.grammar.Grammar;
 import felix.parser.glr.grammar.Priority;
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.parsetree.Element;
 import felix.parser.glr.parsetree.Node;
+import felix.parser.glr.parsetree.ParseForest;
+import felix.parser.glr.parsetree.Token;
 import felix.parser.util.FilePos;
+import felix.parser.util.FileRange;
+import felix.parser.util.ParserReader;
+import felix.parser.util.TextEdit;
 
+/**
+ * A grammar compiled into an automaton, ready to parse any number of inputs.
+ * <p>
+ * Building the automaton usually costs much more than parsing a small input, so
+ * build a parser once and keep it.  A parser isn't changed by parsing, so it can be
+ * used from several threads at once.  The convenience parse methods on Grammar and
+ * Symbol get theirs from forGrammar(), which keeps the most recently used ones.
+ */
 public class Parser {
 	public static boolean debug;
-	
+
+	/** How many parsers forGrammar() keeps */
+	public static int maxCachedParsers = 64;
+
+	private static final LinkedHashMap<CacheKey,Parser> cache = new LinkedHashMap<CacheKey,Parser>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<CacheKey, Parser> eldest) {
+			return size() > maxCachedParsers;
+		}
+	};
+
+	public final Grammar grammar;
+	public final Automaton automaton;
+
+	public Parser(Grammar grammar, Automaton automaton) {
+		super();
+		this.grammar = grammar;
+		this.automaton = automaton;
+	}
+
+	/**
+	 * Build the automaton for the grammar.
+	 */
+	public Parser(Grammar grammar) {
+		this(grammar, new Automaton().build(grammar));
+		if(debug) System.out.println(automaton);
+	}
+
+	/**
+	 * Get a parser for the grammar, reusing one built earlier for the same root symbol
+	 * with the same symbols and ignored terminals.
+	 */
+	public static Parser forGrammar(Grammar grammar) {
+		final CacheKey key = new CacheKey(grammar);
+		synchronized(cache) {
+			Parser parser = cache.get(key);
+			if(parser != null)
+				return parser;
+		}
+		// Build outside the lock so other grammars aren't held up
+		final Parser parser = new Parser(grammar);
+		synchronized(cache) {
+			final Parser existing = cache.get(key);
+			if(existing != null)
+				return existing;
+			cache.put(key, parser);
+		}
+		return parser;
+	}
+
+	/**
+	 * Forget every parser cached by forGrammar().
+	 */
+	public static void clearCache() {
+		synchronized(cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Symbols are compared by identity here, since different symbol objects with the same
+	 * name may match different things.
+	 */
+	private static class CacheKey {
+		final Symbol root;
+		final Set<Symbol> symbols = Collections.newSetFromMap(new IdentityHashMap<Symbol,Boolean>());
+		final Set<Symbol> ignore = Collections.newSetFromMap(new IdentityHashMap<Symbol,Boolean>());
+
+		CacheKey(Grammar grammar) {
+			this.root = grammar.root;
+			this.symbols.addAll(grammar.symbols);
+			this.ignore.addAll(grammar.ignore);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(root) * 31 + symbols.size();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof CacheKey))
+				return false;
+			final CacheKey other = (CacheKey) obj;
+			return root == other.root && ignore.equals(other.ignore) && symbols.equals(other.symbols);
+		}
+	}
+
+	/**
+	 * Parse the input, which should match the grammar's root symbol entirely.
+	 */
+	public Node parse(ParserReader input) throws IOException, ParseException {
+		return automaton.parse(input);
+	}
+
+	/**
+	 * Parse the input, returning every possible parse of it as a shared packed parse forest.
+	 */
+	public ParseForest parseForest(ParserReader input) throws IOException, ParseException {
+		return automaton.parseForest(input);
+	}
+
+	/**
+	 * Parse the input, spreading the work at positions with many live stack heads across
+	 * the pool.  The result is the same whatever the number of threads.
+	 */
+	public Node parse(ParserReader input, ForkJoinPool pool) throws IOException, ParseException {
+		return new ParseSession(automaton, input).parallel(pool, ParseSession.DEFAULT_MIN_PARALLEL_TASKS).parse();
+	}
+
+	/**
+	 * Parse the input into a forest, spreading the work at positions with many live stack
+	 * heads across the pool.
+	 */
+	public ParseForest parseForest(ParserReader input, ForkJoinPool pool) throws IOException, ParseException {
+		return new ParseSession(automaton, input).parallel(pool, ParseSession.DEFAULT_MIN_PARALLEL_TASKS).parseForest();
+	}
+
+	/**
+	 * Parse the input, giving up with a ParseBudgetExceededException if the parse goes
+	 * over the budget or the budget is cancelled.
+	 */
+	public Node parse(ParserReader input, ParseBudget budget) throws IOException, ParseException {
+		return new ParseSession(automaton, input).budget(budget).parse();
+	}
+
+	/**
+	 * Parse the input into a forest, giving up with a ParseBudgetExceededException if the
+	 * parse goes over the budget or the budget is cancelled.
+	 */
+	public ParseForest parseForest(ParserReader input, ParseBudget budget) throws IOException, ParseException {
+		return new ParseSession(automaton, input).budget(budget).parseForest();
+	}
+
+	/**
+	 * Parse a string as an input.
+	 */
+	public Node parse(String input, String filename) throws IOException, ParseException {
+		return parse(new ParserReader(input, filename));
+	}
+
+	/**
+	 * Parse a string as an input, returning every possible parse of it as a forest.
+	 */
+	public ParseForest parseForest(String input, String filename) throws IOException, ParseException {
+		return parseForest(new ParserReader(input, filename));
+	}
+
+	/**
+	 * Parse a file as an input.
+	 * 
+	 * The file is memory mapped and decoded into memory in one go, to allow seeking and
+	 * to count the number of characters in the file.
+	 */
+	public Node parse(File input, String charsetName) throws IOException, ParseException {
+		final Charset charset;
+		try {
+			charset = Charset.forName(charsetName);
+		} catch(IllegalArgumentException e) {
+			throw new UnsupportedEncodingException(charsetName);
+		}
+		return parse(new ParserReader(input, charset));
+	}
+
+	/**
+	 * Parse from a reader.  The reader is first buffered fully into memory to count characters and to allow
+	 * seeking.  After reading, the provided reader is closed.
+	 * 
+	 * @param maxChars The maximum expected number of characters in the file; used to allocate a buffer to contain
+	 *                 the file.  If the file has more characters than expected, the remaining characters will be
+	 *                 ignored.
+	 */
+	public Node parse(String filename, int maxChars, Reader in) throws IOException, ParseException {
+		CharBuffer buf = CharBuffer.allocate(maxChars);
+		try {
+			while(in.read(buf) > 0) {
+				// Work done in the conditional here...
+			}
+		} finally {
+			in.close();
+		}
+		buf.flip();
+		return parse(new ParserReader(buf.array(), buf.remaining(), filename));
+	}
+
+	/**
+	 * Parse an edited version of the input a tree was parsed from, reusing the parts of
+	 * the tree the edits didn't touch.
+	 * <p>
+	 * The smallest element around the edits whose first and last tokens weren't touched
+	 * is parsed again by itself, and the elements above it are rebuilt around the new one;
+	 * every other node is shared with the old tree.  If the new element wasn't made by the
+	 * same rule as the old one, its parent might not accept it (because of priorities),
+	 * so the next element up is tried instead, and so on up to parsing the whole input again.
+	 * <p>
+	 * Positions in the shared nodes aren't updated up front; they're mapped to the new text
+	 * when asked for (see FileRange.current()).  So the old tree describes the new text
+	 * after this, and shouldn't be used any more.
+	 * 
+	 * @param previous Tree from the last time the input was parsed (or reparsed)
+	 * @param edits Changes made to the input since, each relative to the text after the ones before it
+	 */
+	public Node reparse(Node previous, List<TextEdit> edits) throws IOException, ParseException {
+		final ParserReader oldInput = ParserReader.forPosition(previous.getFileRange().start);
+		if(oldInput == null) throw new IllegalArgumentException("The tree wasn't parsed from a ParserReader");
+		if(edits.isEmpty())
+			return previous;
+
+		// Work out the damaged part of the text, from its start to its end before and after the edits
+		int damageStart = Integer.MAX_VALUE;
+		int damageEnd = -1;
+		int delta = 0;
+		for(TextEdit edit : edits) {
+			damageEnd = damageEnd < 0 ? edit.offset + edit.insertedText.length() : Math.max(edit.map(damageEnd), edit.offset + edit.insertedText.length());
+			damageStart = Math.min(damageStart, edit.offset);
+			delta += edit.delta();
+		}
+		final int oldDamageEnd = damageEnd - delta;
+
+		// Find the elements around the damage while the tree still has the old positions
+		final ArrayList<Element> path = new ArrayList<>();
+		final ArrayList<Integer> childIndexes = new ArrayList<>();
+		Node node = previous;
+		while(node instanceof Element && !((Element)node).isAmbiguous() && surrounds(node, damageStart, oldDamageEnd)) {
+			final Element element = (Element) node;
+			path.add(element);
+			node = null;
+			for(int i=0; i < element.children.length; i++) {
+				if(surrounds(element.children[i], damageStart, oldDamageEnd)) {
+					childIndexes.add(i);
+					node = element.children[i];
+					break;
+				}
+			}
+		}
+
+		final ParserReader input = oldInput.edit(edits);
+		for(int k=path.size()-1; k > 0; k--) {
+			final Element replacement = reparse(input, path.get(k));
+			if(replacement == null)
+				continue;
+			// Copy the elements above it with the one child replaced.  Their symbols can't
+			// build them again from their children, since a Sequence would flatten its first
+			// child into itself; and they aren't ambiguous, so there are no other derivations.
+			Node result = replacement;
+			for(int j=k-1; j >= 0; j--) {
+				final Element parent = path.get(j);
+				final Node[] children = parent.children.clone();
+				children[childIndexes.get(j)] = result;
+				result = new Element(parent.symbol, children);
+			}
+			return result;
+		}
+		return parse(input);
+	}
+
+	/**
+	 * Check that the damaged part of the text is inside a node, clear of its first and last
+	 * characters, so that its boundaries are where they were.  Only the node's range is
+	 * looked at, so checking each element on the way down the tree is cheap.
+	 */
+	private static boolean surrounds(Node node, int damageStart, int damageEnd) {
+		final FileRange range = node.getFileRange();
+		return range.getStartOffset() < damageStart && range.getEndOffset() > damageEnd;
+	}
+
+	/**
+	 * Find the first token of a node, looking no further into the tree than needed.
+	 */
+	private static Token firstToken(Node node) {
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(node);
+		while(!stack.isEmpty()) {
+			final Node n = stack.pop();
+			if(n instanceof Token)
+				return (Token) n;
+			for(int i=n.getChildCount()-1; i >= 0; i--) {
+				stack.push(n.getChild(i));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Parse the new text of an element by itself, with the same layout before it.
+	 * 
+	 * @return The new element, or null if it doesn't parse or wasn't made by the same rule
+	 */
+	private Element reparse(ParserReader input, Element old) throws IOException {
+		final FileRange range = old.getFileRange();
+		final String prefix = firstToken(old).getIgnoredPrefix();
+		final int start = range.getStartOffset() - (prefix == null ? 0 : prefix.length());
+		final Node result;
+		try {
+			result = forGrammar(new Grammar(old.symbol, grammar.ignore)).parse(input.region(start, range.getEndOffset()));
+		} catch(ParseException e) {
+			return null;
+		}
+		if(!(result instanceof Element) || !result.symbol.equals(old.symbol))
+			return null;
+		final Element element = (Element) result;
+		if(element.children.length != old.children.length)
+			return null;
+		for(int i=0; i < old.children.length; i++) {
+			if(!element.children[i].symbol.equals(old.children[i].symbol))
+				return null;
+		}
+		return element;
+	}
+
+	/**
+	 * A vertex in the graph-structured stack.
+	 * <p>
+	 * Every parse that arrives at the same state at the same input position shares
+	 * one head; each of those parses is recorded as a link back to the head it was
+	 * built on.
+	 */
 	public static class StackHead {
-		// The parent state we based this action on
-		public final StackHead left;
+		// Number of the current state in the parse table
+		public final int stateNumber;
 		
 		// Current state
 		public final State state;
-		
-		// The parse tree node we generated when we moved into this state
-		public final Node node;
-		
-		// The priority of the rule that produced the node
-		public final Priority priority;
-		
+
+		// Input position just after the nodes on the links into this head
+		public final FilePos position;
+
 		// Parse table, rules, and symbols
 		public final Automaton automaton;
-		
-		public StackHead(StackHead left, State state, Node node, Priority priority, Automaton automaton) {
+
+		// The paths that lead into this head; there is more than one when parses merged here
+		public final ArrayList<StackLink> links = new ArrayList<>(1);
+
+		// Set once the parser has applied the actions for this head
+		public boolean processed;
+
+		// The links again by the head they continue from, once there are too many to search through
+		private IdentityHashMap<StackHead,ArrayList<StackLink>> linksByLeft;
+		private static final int MAX_UNINDEXED_LINKS = 8;
+
+		public StackHead(int stateNumber, State state, FilePos position, Automaton automaton) {
 			super();
-			this.left = left;
+			this.stateNumber = stateNumber;
 			this.state = state;
-			this.node = node;
-			this.priority = priority;
+			this.position = position;
 			this.automaton = automaton;
 		}
-		
-		public StackHead(StackHead left, State state, Node node, Priority priority) {
-			this(left, state, node, priority, left.automaton);
+
+		/**
+		 * Add a link into this head.
+		 */
+		public void addLink(StackLink link) {
+			links.add(link);
+			if(linksByLeft != null) {
+				index(link);
+			} else if(links.size() > MAX_UNINDEXED_LINKS) {
+				linksByLeft = new IdentityHashMap<>();
+				for(StackLink l : links) {
+					index(l);
+				}
+			}
 		}
 
-		public StringBuffer toString(StringBuffer buf, int n) {
-			if(state == null && node == null && left == null) return buf.append("ROOT");
-			if(buf.length() > 0) buf.append("\n");
-			buf.append(n).append(": ").append(state==null?State.START_OF_FILE:state).append(" => ").append(node);
-			if(left != null) left.toString(buf, n+1);
-			return buf;
+		private void index(StackLink link) {
+			ArrayList<StackLink> same = linksByLeft.get(link.left);
+			if(same == null)
+				linksByLeft.put(link.left, same = new ArrayList<>(1));
+			same.add(link);
 		}
-		
+
+		/**
+		 * Get the links into this head that might continue from the given head.  While
+		 * there are only a few links this is all of them, so check each one's left.
+		 */
+		public List<StackLink> getLinksFrom(StackHead left) {
+			if(linksByLeft == null)
+				return links;
+			final ArrayList<StackLink> same = linksByLeft.get(left);
+			return same == null ? Collections.<StackLink>emptyList() : same;
+		}
+
+		/**
+		 * The root is the head for the start of the file; it is the only head without a state.
+		 */
+		public boolean isRoot() {
+			return state == null;
+		}
+
 		@Override
 		public String toString() {
-			if(state == null && node == null && left == null) return "ROOT";
-			return toString(new StringBuffer(), 0).toString();
+			if(isRoot()) return "ROOT";
+			StringBuffer buf = new StringBuffer();
+			buf.append(state).append(" @ ").append(position);
+			for(StackLink link : links) {
+				buf.append("\n  ").append(link);
+			}
+			return buf.toString();
 		}
 
 		public FilePos getParsePosition() {
-			return node == null ? FilePos.START : node.getFileRange().getEnd();
+			return position;
+		}
+	}
+
+	/**
+	 * An edge in the graph-structured stack, leading from a head back to the head it was
+	 * built on.
+	 */
+	public static class StackLink {
+		// The head this path continues from; null only for the link into the root
+		public final StackHead left;
+
+		// The parse tree node we generated when we moved into the head
+		public final Node node;
+
+		// The priority of the rule that produced the node
+		public final Priority priority;
+
+		// The parse table's numbers for the node's symbol and the priority, for checking reductions
+		public final int symbolNumber;
+		public final int priorityNumber;
+
+		public StackLink(StackHead left, Node node, Priority priority, int symbolNumber, int priorityNumber) {
+			super();
+			this.left = left;
+			this.node = node;
+			this.priority = priority;
+			this.symbolNumber = symbolNumber;
+			this.priorityNumber = priorityNumber;
+		}
+
+		@Override
+		public String toString() {
+			return node+" <- "+(left == null || left.isRoot() ? "ROOT" : left.state);
 		}
 	}
-	
+
 }
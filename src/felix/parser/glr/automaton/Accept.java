@@ -3,9 +3,11 @@ package felix.parser.glr.automaton;
 import java.io.IOException;
 
 import felix.parser.glr.Parser.StackHead;
+import felix.parser.glr.Parser.StackLink;
 import felix.parser.glr.grammar.Marker;
 import felix.parser.glr.grammar.Priority;
 import felix.parser.glr.parsetree.Node;
+import felix.parser.util.Layout;
 import felix.parser.util.ParserReader;
 
 public class Accept extends Action {
@@ -18,18 +20,22 @@ public class Accept extends Action {
 	}
 
 	@Override
-	public StackHead apply(StackHead head, ParserReader reader, String ignored) throws IOException {
-		// If we are at the top of the stack
-		if(head.left != null && head.left.left != null)
-			return null;
-		
-		// And we should have consumed everything up the end of the input
-		final Node token = Marker.END_OF_FILE.match(reader, head, ignored);
+	public void apply(ParseSession session, StackHead head, StackLink via, ParserReader reader, Layout ignored) throws IOException {
+		// We should have consumed everything up the end of the input
+		final Node token = Marker.END_OF_FILE.match(reader, head, ignored.getChars());
 		if(token == null)
-			return null;
+			return;
 
-		// OK, looks like we parsed everything then!
-		return new StackHead(head, State.ACCEPT, head.node, head.priority);
+		for(StackLink link : head.links) {
+			if(via != null && link != via)
+				continue;
+			// If we are at the top of the stack
+			if(link.left == null || !link.left.isRoot())
+				continue;
+
+			// OK, looks like we parsed everything then!
+			session.accept(link.node);
+		}
 	}
 
 	@Override
@@ -3,18 +3,29 @@ package felix.parser.glr.automaton;
 import java.io.IOException;
 
 import felix.parser.glr.Parser.StackHead;
+import felix.parser.glr.Parser.StackLink;
 import felix.parser.glr.grammar.Priority;
+import felix.parser.util.Layout;
 import felix.parser.util.ParserReader;
 
 public abstract class Action implements Comparable<Action> {
 	final Priority priority;
 	
+	// What can come next in the input for this action to succeed; null if anything can
+	Lookahead lookahead;
+	
 	@Override
 	public int compareTo(Action o) {
 		return priority.compareTo(o.priority);
 	}
 
-	public abstract StackHead apply(StackHead head, ParserReader reader, String ignored) throws IOException;
+	/**
+	 * Apply this action to a stack head, pushing any resulting heads onto the session.
+	 * 
+	 * @param via If non-null, only the stack paths passing through this link are considered
+	 * @param ignored The ignored text just before the position where tokens start
+	 */
+	public abstract void apply(ParseSession session, StackHead head, StackLink via, ParserReader reader, Layout ignored) throws IOException;
 
 	public Action(Priority priority) {
 		super();
@@ -1,8 +1,13 @@
 package felix.parser.glr.automaton;
 
-import java.io.EOFException;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -11,15 +16,15 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import felix.parser.glr.AmbiguousInputException;
+import felix.parser.glr.ParseBudgetExceededException;
 import felix.parser.glr.Parser;
-import felix.parser.glr.Parser.StackHead;
 import felix.parser.glr.SyntaxError;
 import felix.parser.glr.grammar.Grammar;
-import felix.parser.glr.grammar.Marker;
 import felix.parser.glr.grammar.Priority;
 import felix.parser.glr.grammar.Symbol;
 import felix.parser.glr.grammar.Terminal;
 import felix.parser.glr.parsetree.Node;
+import felix.parser.glr.parsetree.ParseForest;
 import felix.parser.util.ParserReader;
 
 /**
@@ -40,6 +45,7 @@ public class Automaton {
 	public final LinkedHashMap<String,Symbol> symbols = new LinkedHashMap<>();
 	public final LinkedHashMap<State,Set<Action>> table = new LinkedHashMap<>();
 	public final Set<Terminal> ignore = new HashSet<>();
+	ParseTable parseTable;
 	
 	public Automaton() {
 		super();
@@ -149,9 +155,70 @@ public class Automaton {
 		}
 		
 		//System.out.println(this.toString());
+		Lookahead.attach(this, grammar.root);
+		parseTable = ParseTable.compile(this);
 		return this;
 	}
 	
+	/**
+	 * Get the table in the compact form used for parsing, compiling it if that wasn't done yet.
+	 */
+	public ParseTable getParseTable() {
+		if(parseTable == null) parseTable = ParseTable.compile(this);
+		return parseTable;
+	}
+	
+	/**
+	 * Save the compiled table so it can be loaded again with load() instead of being rebuilt.
+	 * 
+	 * @param grammar The grammar this automaton was built from, used to tell whether a saved table is stale
+	 */
+	public void save(Grammar grammar, OutputStream out) throws IOException {
+		AutomatonFile.write(this, grammar.fingerprint(), out);
+	}
+
+	public void save(Grammar grammar, File file) throws IOException {
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+			save(grammar, out);
+		}
+	}
+
+	/**
+	 * Load an automaton saved by save().
+	 * 
+	 * @throws IOException If the data isn't a saved automaton, has an unsupported version, or
+	 *                     was built from a grammar different from the one given
+	 */
+	public static Automaton load(Grammar grammar, ByteBuffer buf) throws IOException {
+		return AutomatonFile.read(grammar, buf);
+	}
+
+	/**
+	 * Load an automaton from a file saved by save().  The file is memory mapped rather than read.
+	 */
+	public static Automaton load(Grammar grammar, File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return load(grammar, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Load the automaton from the given file, or if it is missing, unreadable, or was built
+	 * from a different grammar, build it and save it there for next time.
+	 */
+	public static Automaton loadOrBuild(Grammar grammar, File file) throws IOException {
+		if(file.isFile()) {
+			try {
+				return load(grammar, file);
+			} catch(IOException | RuntimeException e) {
+				if(Parser.debug) System.out.println("Rebuilding "+file+": "+e);
+			}
+		}
+		Automaton automaton = new Automaton().build(grammar);
+		automaton.save(grammar, file);
+		return automaton;
+	}
+
 	public void addSymbol(Symbol sym) {
 		symbols.put(sym.id, sym);
 	}
@@ -166,6 +233,7 @@ public class Automaton {
 		if(action == null) throw new NullPointerException();
 		Set<Action> actionSet = getActions(left, true);
 		if(actionSet.add(action)) {
+			parseTable = null;
 			if(Parser.debug) {
 				System.out.println("Automaton.addAction("+left+", "+action+")");
 			}
@@ -220,58 +288,16 @@ public class Automaton {
 	}
 
 	public Node parse(ParserReader input)
-			throws IOException, SyntaxError, AmbiguousInputException {
-		LinkedList<StackHead> stacks = new LinkedList<>();
-		stacks.add(new StackHead(null, null, Marker.START_OF_FILE.match(input, null, ""), Priority.DEFAULT, this));
-		ArrayList<Node> completed = new ArrayList<>();
-		try {
-			while(!stacks.isEmpty()) {
-				StackHead stack = stacks.removeFirst();
-				if(stack.state == State.ACCEPT) {
-					completed.add(stack.node);
-					continue;
-				}
-				State state = stack.state;
-				Set<Action> actions = getActions(state);
-				if(actions == null || actions.isEmpty()) {
-					if(Parser.debug) System.out.println("No successor to state "+state);
-					// Ran out of steam on this alternative...
-					continue;
-				}
-				
-				// Seek to the end of the last token we read
-				input.seek(stack.getParsePosition());
-				
-				// Skip over whitespace and comments
-				String ignored = input.consume(ignore);
-				
-				//if(debug) System.out.println("Stack:\n"+stack);
-				
-				// Compute our next state(s)
-				boolean matched = false;
-				for(Action action : actions) {
-					final StackHead newHead = action.apply(stack, input, ignored);
-					if(newHead != null) {
-						// We have a match!
-						matched = true;
-						if(Parser.debug) System.out.println(stack.state + " "+action+" -> "+newHead.state+" => "+newHead.node);
-						stacks.add(newHead);
-					}
-				}
-				if(!matched) {
-					System.out.println(input.getFilePos()+" in state "+stack.state+" nothing matched "+actions);
-				}
-			}
-		} catch(EOFException e) {
-			throw new SyntaxError("Passed EOF during parse. (BUG?)", input.getFileRange(input.getFilePos()));
-		}
-		if(completed.size() == 1) {
-			return completed.get(0);
-		} else if(completed.size() > 1){
-			throw new AmbiguousInputException(completed.toArray(new Node[completed.size()]));
-		} else {
-			// No successful parses
-			throw new SyntaxError("Failed to parse", input.getFileRange(input.getFilePos()));
-		}
+			throws IOException, SyntaxError, AmbiguousInputException, ParseBudgetExceededException {
+		return new ParseSession(this, input).parse();
+	}
+
+	/**
+	 * Parse the input, returning every way it can be parsed as a shared packed parse forest
+	 * rather than throwing AmbiguousInputException.
+	 */
+	public ParseForest parseForest(ParserReader input)
+			throws IOException, SyntaxError, AmbiguousInputException, ParseBudgetExceededException {
+		return new ParseSession(this, input).parseForest();
 	}
 }
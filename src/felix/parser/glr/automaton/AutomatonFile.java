@@ -0,0 +1,350 @@
+package felix.parser.glr.automaton;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import felix.parser.glr.grammar.Grammar;
+import felix.parser.glr.grammar.Marker;
+import felix.parser.glr.grammar.Priority;
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.grammar.Terminal;
+
+/**
+ * Binary format for a built automaton, so that a parser can start up without
+ * rebuilding its table.
+ * <p>
+ * Everything is stored as big-endian 32-bit ints, with strings padded to a multiple of
+ * four bytes, so a file can be memory mapped and the big arrays copied straight out of
+ * an IntBuffer.  Symbols and priorities are stored by id and looked up in the grammar
+ * when loading.  The grammar's fingerprint is stored too, so a file built from a
+ * different grammar is rejected rather than silently misparsing.
+ * <p>
+ * The lookahead of each action is stored as well, so loading doesn't need to work out
+ * FIRST and FOLLOW sets again.  The per-state action arrays and compiled reduce checks
+ * of the ParseTable are not stored; they are quick to derive from the rows.
+ * <pre>
+ * header:     MAGIC, VERSION, fingerprint (a long, so 2 ints)
+ * strings:    count, then for each: byte length, UTF-8 bytes padded to 4
+ * symbols:    count, then the string number of each id
+ * priorities: count, then the string number of each id
+ * states:     count, then for each: chain length (-1 for the initial state) and the
+ *             symbol numbers from the outermost left state in
+ * lookaheads: count, then 5 longs of character bits for each
+ * actions:    count, then for each: kind, priority number, lookahead number (-1 for
+ *             none), and then
+ *             for a shift: symbol, target state
+ *             for a reduce: symbol, reduced symbol number, part count, part symbols
+ * rows:       state count + 1 row starts
+ * reduced:    count, then the symbol number of each reduced symbol
+ * gotos:      state count * reduced count target states
+ * ignore:     count, then symbol numbers
+ * </pre>
+ */
+public class AutomatonFile {
+	public static final int MAGIC = 0x474C5254; // "GLRT"
+	public static final int VERSION = 3;
+
+	static final int SHIFT = 1;
+	static final int REDUCE = 2;
+	static final int ACCEPT = 3;
+
+	/**
+	 * Write the automaton's compiled table, symbols, priorities and ignore set.
+	 */
+	public static void write(Automaton automaton, long fingerprint, OutputStream stream) throws IOException {
+		final ParseTable table = automaton.getParseTable();
+		final LinkedHashMap<Symbol,Integer> symbols = new LinkedHashMap<>();
+		final LinkedHashMap<Priority,Integer> priorities = new LinkedHashMap<>();
+		final LinkedHashMap<Lookahead,Integer> lookaheads = new LinkedHashMap<>();
+		for(Action action : table.actions) {
+			number(priorities, action.priority);
+			if(action.lookahead != null)
+				number(lookaheads, action.lookahead);
+			if(action instanceof Shift) {
+				number(symbols, ((Shift)action).symbol);
+			} else if(action instanceof Reduce) {
+				number(symbols, ((Reduce)action).symbol);
+				for(Symbol part : ((Reduce)action).parts) {
+					number(symbols, part);
+				}
+			}
+		}
+		for(State state : table.states) {
+			for(State s = state; s != null; s = s.left) {
+				number(symbols, s.symbol);
+			}
+		}
+		for(Terminal t : automaton.ignore) {
+			number(symbols, t);
+		}
+
+		final DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(fingerprint);
+
+		// Strings
+		out.writeInt(symbols.size() + priorities.size());
+		for(Symbol sym : symbols.keySet()) {
+			writeString(out, sym.id);
+		}
+		for(Priority p : priorities.keySet()) {
+			writeString(out, p.id);
+		}
+		out.writeInt(symbols.size());
+		for(int i=0; i < symbols.size(); i++) {
+			out.writeInt(i);
+		}
+		out.writeInt(priorities.size());
+		for(int i=0; i < priorities.size(); i++) {
+			out.writeInt(symbols.size() + i);
+		}
+
+		// States
+		out.writeInt(table.states.length);
+		for(State state : table.states) {
+			if(state == null) {
+				out.writeInt(-1);
+				continue;
+			}
+			ArrayList<Symbol> chain = new ArrayList<>();
+			for(State s = state; s != null; s = s.left) {
+				chain.add(0, s.symbol);
+			}
+			out.writeInt(chain.size());
+			for(Symbol sym : chain) {
+				out.writeInt(symbols.get(sym));
+			}
+		}
+
+		// Lookaheads
+		out.writeInt(lookaheads.size());
+		for(Lookahead lookahead : lookaheads.keySet()) {
+			for(long bits : lookahead.bits) {
+				out.writeLong(bits);
+			}
+		}
+
+		// Actions
+		out.writeInt(table.actions.length);
+		for(Action action : table.actions) {
+			final int lookahead = action.lookahead == null ? -1 : lookaheads.get(action.lookahead);
+			if(action instanceof Shift) {
+				final Shift shift = (Shift) action;
+				out.writeInt(SHIFT);
+				out.writeInt(priorities.get(action.priority));
+				out.writeInt(lookahead);
+				out.writeInt(symbols.get(shift.symbol));
+				out.writeInt(shift.target);
+			} else if(action instanceof Reduce) {
+				final Reduce reduce = (Reduce) action;
+				out.writeInt(REDUCE);
+				out.writeInt(priorities.get(action.priority));
+				out.writeInt(lookahead);
+				out.writeInt(symbols.get(reduce.symbol));
+				out.writeInt(reduce.symbolNumber);
+				out.writeInt(reduce.parts.length);
+				for(Symbol part : reduce.parts) {
+					out.writeInt(symbols.get(part));
+				}
+			} else if(action instanceof Accept) {
+				out.writeInt(ACCEPT);
+				out.writeInt(priorities.get(action.priority));
+				out.writeInt(lookahead);
+			} else {
+				throw new IOException("Don't know how to save "+action.getClass().getName());
+			}
+		}
+
+		writeInts(out, table.rowStart);
+		out.writeInt(table.symbols.length);
+		for(Symbol sym : table.symbols) {
+			out.writeInt(symbols.get(sym));
+		}
+		writeInts(out, table.gotos);
+		out.writeInt(automaton.ignore.size());
+		for(Terminal t : automaton.ignore) {
+			out.writeInt(symbols.get(t));
+		}
+		out.flush();
+	}
+
+	private static <T> void number(Map<T,Integer> numbers, T item) {
+		if(!numbers.containsKey(item))
+			numbers.put(item, numbers.size());
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		for(int i=bytes.length; i % 4 != 0; i++) {
+			out.write(0);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+		out.writeInt(ints.length);
+		for(int i : ints) {
+			out.writeInt(i);
+		}
+	}
+
+	/**
+	 * Read the fingerprint of the grammar a saved automaton was built from.
+	 */
+	public static long readFingerprint(ByteBuffer buf) throws IOException {
+		buf = buf.duplicate();
+		checkHeader(buf);
+		return buf.getLong();
+	}
+
+	private static void checkHeader(ByteBuffer buf) throws IOException {
+		if(buf.remaining() < 16 || buf.getInt() != MAGIC)
+			throw new IOException("Not a saved automaton");
+		final int version = buf.getInt();
+		if(version != VERSION)
+			throw new IOException("Saved automaton has version "+version+"; expected "+VERSION);
+	}
+
+	/**
+	 * Load an automaton saved by write(), resolving its symbols and priorities against
+	 * the given grammar.
+	 *
+	 * @throws IOException If the data is not a saved automaton or was built from a different grammar
+	 */
+	public static Automaton read(Grammar grammar, ByteBuffer buf) throws IOException {
+		buf = buf.duplicate();
+		checkHeader(buf);
+		final long fingerprint = buf.getLong();
+		if(fingerprint != grammar.fingerprint())
+			throw new IOException("Saved automaton was built from a different grammar");
+
+		final Automaton automaton = new Automaton();
+		for(Symbol sym : new Symbol[] {Marker.START_OF_FILE, Marker.END_OF_FILE, Marker.NIL}) {
+			automaton.addSymbol(sym);
+		}
+		for(Symbol sym : grammar.symbols) {
+			automaton.addSymbol(sym);
+		}
+		for(Symbol sym : grammar.symbols) {
+			sym.resolveRefs(automaton);
+		}
+		final Map<String, Priority> grammarPriorities = grammar.collectPriorities();
+
+		final String[] strings = new String[buf.getInt()];
+		for(int i=0; i < strings.length; i++) {
+			final byte[] bytes = new byte[buf.getInt()];
+			buf.get(bytes);
+			buf.position(buf.position() + (4 - bytes.length % 4) % 4);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		final Symbol[] symbols = new Symbol[buf.getInt()];
+		for(int i=0; i < symbols.length; i++) {
+			final String id = strings[buf.getInt()];
+			symbols[i] = automaton.getSymbol(id);
+			if(symbols[i] == null) throw new IOException("Saved automaton refers to unknown symbol "+id);
+		}
+		final Priority[] priorities = new Priority[buf.getInt()];
+		for(int i=0; i < priorities.length; i++) {
+			final String id = strings[buf.getInt()];
+			priorities[i] = grammarPriorities.get(id);
+			if(priorities[i] == null) throw new IOException("Saved automaton refers to unknown priority "+id);
+		}
+
+		final State[] states = new State[buf.getInt()];
+		for(int i=0; i < states.length; i++) {
+			final int length = buf.getInt();
+			State state = null;
+			for(int k=0; k < length; k++) {
+				state = new State(state, symbols[buf.getInt()]);
+			}
+			states[i] = state;
+		}
+
+		final Lookahead[] lookaheads = new Lookahead[buf.getInt()];
+		for(int i=0; i < lookaheads.length; i++) {
+			final long[] bits = new long[5];
+			for(int k=0; k < bits.length; k++) {
+				bits[k] = buf.getLong();
+			}
+			lookaheads[i] = new Lookahead(bits);
+		}
+
+		final Action[] actions = new Action[buf.getInt()];
+		for(int i=0; i < actions.length; i++) {
+			final int kind = buf.getInt();
+			final Priority priority = priorities[buf.getInt()];
+			final int lookahead = buf.getInt();
+			switch(kind) {
+			case SHIFT: {
+				final Symbol symbol = symbols[buf.getInt()];
+				final int target = buf.getInt();
+				final Shift shift = new Shift(symbol, states[target], priority);
+				shift.target = target;
+				actions[i] = shift;
+				break;
+			}
+			case REDUCE: {
+				final Symbol symbol = symbols[buf.getInt()];
+				final int symbolNumber = buf.getInt();
+				final Symbol[] parts = new Symbol[buf.getInt()];
+				for(int k=0; k < parts.length; k++) {
+					parts[k] = symbols[buf.getInt()];
+				}
+				final Reduce reduce = new Reduce(symbol, parts, priority);
+				reduce.symbolNumber = symbolNumber;
+				actions[i] = reduce;
+				break;
+			}
+			case ACCEPT:
+				actions[i] = new Accept(priority);
+				break;
+			default:
+				throw new IOException("Unknown action type "+kind+" in saved automaton");
+			}
+			if(lookahead >= 0)
+				actions[i].lookahead = lookaheads[lookahead];
+		}
+
+		final int[] rowStart = readInts(buf);
+		final Symbol[] reduced = new Symbol[buf.getInt()];
+		for(int i=0; i < reduced.length; i++) {
+			reduced[i] = symbols[buf.getInt()];
+		}
+		final int[] gotos = readInts(buf);
+		final int ignoreCount = buf.getInt();
+		for(int i=0; i < ignoreCount; i++) {
+			automaton.ignore.add((Terminal) symbols[buf.getInt()]);
+		}
+		if(rowStart.length != states.length + 1 || gotos.length != states.length * reduced.length)
+			throw new IOException("Saved automaton is corrupt");
+
+		// Fill in the table too, so the automaton can be inspected like one that was built
+		for(int s=0; s < states.length; s++) {
+			final LinkedHashSet<Action> row = new LinkedHashSet<>();
+			for(int i=rowStart[s]; i < rowStart[s+1]; i++) {
+				row.add(actions[i]);
+			}
+			automaton.table.put(states[s], row);
+		}
+		automaton.parseTable = new ParseTable(states, reduced, rowStart, actions, gotos);
+		return automaton;
+	}
+
+	private static int[] readInts(ByteBuffer buf) {
+		final int[] ints = new int[buf.getInt()];
+		final IntBuffer view = buf.asIntBuffer();
+		view.get(ints);
+		buf.position(buf.position() + ints.length * 4);
+		return ints;
+	}
+}
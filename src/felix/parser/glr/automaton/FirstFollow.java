@@ -0,0 +1,166 @@
+package felix.parser.glr.automaton;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import felix.parser.glr.grammar.Marker;
+import felix.parser.glr.grammar.NonTerminal;
+import felix.parser.glr.grammar.Rule;
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.grammar.SymbolRef;
+import felix.parser.glr.grammar.SymbolWithPriorityRequirement;
+import felix.parser.glr.grammar.Terminal;
+
+/**
+ * The classic FIRST and FOLLOW sets for the non-terminals of a grammar.
+ * <p>
+ * FIRST(X) is the set of terminals a match of X can start with, and FOLLOW(X) the set
+ * of terminals that can come right after X anywhere in the grammar.  Terminals that
+ * can match nothing (like NIL) are included, but whatever can follow them is too.
+ * Priority requirements are ignored, so the sets can be larger than necessary but
+ * never smaller.
+ */
+public class FirstFollow {
+	/**
+	 * Stands in for symbols we can't see inside of; it can start with anything and match nothing.
+	 */
+	static final Terminal UNKNOWN = new Marker("<unknown>");
+
+	final Automaton automaton;
+	final ArrayList<NonTerminal> nonTerminals = new ArrayList<>();
+	final HashMap<Symbol, Set<Terminal>> first = new HashMap<>();
+	final HashMap<Symbol, Set<Terminal>> follow = new HashMap<>();
+	final HashSet<Symbol> nullable = new HashSet<>();
+
+	/**
+	 * Compute the sets for every non-terminal in the automaton, with the given symbol
+	 * being followed by the end of the file.
+	 */
+	public FirstFollow(Automaton automaton, Symbol root) {
+		super();
+		this.automaton = automaton;
+		for(Symbol sym : automaton.symbols.values()) {
+			collect(real(sym));
+		}
+		collect(real(root));
+		computeFirst();
+		if(real(root) instanceof NonTerminal)
+			follow.get(real(root)).add(Marker.END_OF_FILE);
+		computeFollow();
+	}
+
+	/**
+	 * Get the symbol that actually matches the input for a reference or a symbol with a requirement.
+	 */
+	Symbol real(Symbol sym) {
+		for(;;) {
+			if(sym instanceof SymbolWithPriorityRequirement) {
+				sym = ((SymbolWithPriorityRequirement)sym).getSymbol();
+			} else if(sym instanceof SymbolRef) {
+				final Symbol target = automaton.getSymbol(sym.id);
+				if(target == null || target == sym)
+					return sym;
+				sym = target;
+			} else {
+				return sym;
+			}
+		}
+	}
+
+	private void collect(Symbol sym) {
+		if(!(sym instanceof NonTerminal) || first.containsKey(sym))
+			return;
+		final NonTerminal nt = (NonTerminal) sym;
+		nonTerminals.add(nt);
+		first.put(nt, new LinkedHashSet<Terminal>());
+		follow.put(nt, new LinkedHashSet<Terminal>());
+		for(Rule r : nt.rules) {
+			for(Symbol part : r.parts) {
+				collect(real(part));
+			}
+		}
+	}
+
+	private void computeFirst() {
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(NonTerminal nt : nonTerminals) {
+				final Set<Terminal> set = first.get(nt);
+				for(Rule r : nt.rules) {
+					boolean allNullable = true;
+					for(Symbol part : r.parts) {
+						final Symbol sym = real(part);
+						changed |= set.addAll(getFirst(sym));
+						if(!isNullable(sym)) {
+							allNullable = false;
+							break;
+						}
+					}
+					if(allNullable)
+						changed |= nullable.add(nt);
+				}
+			}
+		}
+	}
+
+	private void computeFollow() {
+		boolean changed = true;
+		while(changed) {
+			changed = false;
+			for(NonTerminal nt : nonTerminals) {
+				for(Rule r : nt.rules) {
+					for(int i=0; i < r.parts.length; i++) {
+						final Symbol sym = real(r.parts[i]);
+						if(!(sym instanceof NonTerminal))
+							continue;
+						final Set<Terminal> set = follow.get(sym);
+						boolean restNullable = true;
+						for(int k=i+1; k < r.parts.length && restNullable; k++) {
+							final Symbol next = real(r.parts[k]);
+							changed |= set.addAll(getFirst(next));
+							restNullable = isNullable(next);
+						}
+						if(restNullable)
+							changed |= set.addAll(follow.get(nt));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Terminals a match of the symbol can start with.
+	 */
+	public Set<Terminal> getFirst(Symbol sym) {
+		sym = real(sym);
+		if(sym instanceof Terminal)
+			return Collections.singleton((Terminal)sym);
+		final Set<Terminal> set = first.get(sym);
+		return set != null ? set : Collections.singleton(UNKNOWN);
+	}
+
+	/**
+	 * Terminals that can come right after a match of the symbol, or null if the symbol
+	 * isn't a non-terminal of the grammar.
+	 */
+	public Set<Terminal> getFollow(Symbol sym) {
+		return follow.get(real(sym));
+	}
+
+	/**
+	 * Check whether the symbol can match without consuming any input.
+	 */
+	public boolean isNullable(Symbol sym) {
+		sym = real(sym);
+		if(sym instanceof Terminal)
+			return ((Terminal)sym).canMatchEmpty();
+		if(sym instanceof NonTerminal)
+			return nullable.contains(sym);
+		return true;
+	}
+}
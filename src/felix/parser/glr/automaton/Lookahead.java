@@ -0,0 +1,92 @@
+package felix.parser.glr.automaton;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+import felix.parser.glr.grammar.Marker;
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.grammar.Terminal;
+
+/**
+ * The characters that can come next in the input (after any ignored text) for an
+ * action to have any chance of succeeding.  The parser checks this before trying to
+ * match a terminal or walking the stack for a reduction.
+ * <p>
+ * A shift can only succeed if its terminal can start with the next character, and a
+ * reduction of X is only useful if something in FOLLOW(X) can.
+ * <p>
+ * Only characters up to 255 are checked.  Anything above that is let through and
+ * left for the match to decide, since asking each terminal about it would cost more
+ * than the action it might save.
+ */
+public class Lookahead {
+	// Bit ch+1 is set if ch may come next, for ch from -1 (end of input) up to 255
+	final long[] bits;
+
+	public Lookahead(Collection<Terminal> terminals) {
+		super();
+		this.bits = new long[5];
+		for(int ch=-1; ch < 256; ch++) {
+			for(Terminal t : terminals) {
+				if(t.canStartWith(ch)) {
+					bits[(ch+1) >> 6] |= 1L << (ch+1);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make a lookahead worked out before, as loaded by AutomatonFile.
+	 */
+	Lookahead(long[] bits) {
+		super();
+		this.bits = bits;
+	}
+
+	/**
+	 * Check whether the action could succeed with the given character next, or -1 at the end of the input.
+	 */
+	public boolean allows(int ch) {
+		if(ch >= 256)
+			return true;
+		return (bits[(ch+1) >> 6] & (1L << (ch+1))) != 0;
+	}
+
+	/**
+	 * Work out the lookahead for every action in the automaton's table.
+	 */
+	public static void attach(Automaton automaton, Symbol root) {
+		final FirstFollow sets = new FirstFollow(automaton, root);
+		final HashMap<Symbol, Lookahead> reduces = new HashMap<>();
+		final HashMap<Symbol, Lookahead> shifts = new HashMap<>();
+		final Lookahead accept = new Lookahead(Collections.<Terminal>singleton(Marker.END_OF_FILE));
+		for(Set<Action> actions : automaton.table.values()) {
+			for(Action action : actions) {
+				if(action instanceof Shift) {
+					final Symbol symbol = ((Shift)action).symbol;
+					if(!(symbol instanceof Terminal) || ((Terminal)symbol).canMatchEmpty())
+						continue; // Matches no matter what comes next
+					Lookahead lookahead = shifts.get(symbol);
+					if(lookahead == null)
+						shifts.put(symbol, lookahead = new Lookahead(Collections.singleton((Terminal)symbol)));
+					action.lookahead = lookahead;
+				} else if(action instanceof Reduce) {
+					final Symbol symbol = ((Reduce)action).symbol;
+					Lookahead lookahead = reduces.get(symbol);
+					if(lookahead == null) {
+						final Set<Terminal> follow = sets.getFollow(symbol);
+						if(follow == null)
+							continue;
+						reduces.put(symbol, lookahead = new Lookahead(follow));
+					}
+					action.lookahead = lookahead;
+				} else if(action instanceof Accept) {
+					action.lookahead = accept;
+				}
+			}
+		}
+	}
+}
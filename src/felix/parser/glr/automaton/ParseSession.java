@@ -0,0 +1,563 @@
+package felix.parser.glr.automaton;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import felix.parser.glr.AmbiguousInputException;
+import felix.parser.glr.ParseBudget;
+import felix.parser.glr.ParseBudgetExceededException;
+import felix.parser.glr.ParseBudgetExceededException.Limit;
+import felix.parser.glr.Parser;
+import felix.parser.glr.Parser.StackHead;
+import felix.parser.glr.Parser.StackLink;
+import felix.parser.glr.SyntaxError;
+import felix.parser.glr.grammar.Marker;
+import felix.parser.glr.grammar.Priority;
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.grammar.Terminal;
+import felix.parser.glr.parsetree.Element;
+import felix.parser.glr.parsetree.Node;
+import felix.parser.glr.parsetree.ParseForest;
+import felix.parser.util.FilePos;
+import felix.parser.util.Layout;
+import felix.parser.util.ParserReader;
+
+/**
+ * A single run of the automaton over some input, using a graph-structured stack.
+ * <p>
+ * Stack heads are grouped into frontiers by input offset and the frontiers are
+ * processed in order of increasing offset.  Within a frontier, every parse that
+ * reaches the same state shares one StackHead, so the actions for that state are only
+ * applied once no matter how many parses got there.  Reductions follow every path
+ * back through the shared graph.
+ * <p>
+ * When a new link is added to a head whose actions were already applied, the
+ * reductions are re-run for just the paths that pass through the new link.
+ */
+public class ParseSession {
+	final Automaton automaton;
+	final ParseTable table;
+	final ParserReader input;
+	final StackHead root;
+
+	/** Frontiers not yet processed, by offset */
+	final TreeMap<Integer,Frontier> frontiers = new TreeMap<>();
+	final ArrayList<Node> completed = new ArrayList<>();
+	Frontier current;
+	
+	// Set when some alternative derivations were packed together
+	boolean ambiguous;
+
+	// Terminal matches at each offset where tokens start, for frontiers not yet processed
+	final TreeMap<Integer,Matches> matches = new TreeMap<>();
+	Matches currentMatches;
+	FilePos tokenStart;
+
+	// For processing big frontiers in parallel; see parallel()
+	public static final int DEFAULT_MIN_PARALLEL_TASKS = 64;
+	ForkJoinPool pool;
+	int minParallelTasks = DEFAULT_MIN_PARALLEL_TASKS;
+
+	// Limits on the work done, if any, and the work done so far; see budget()
+	ParseBudget budget;
+	long startTime;
+	int liveHeads, peakHeads;
+	long actionCount, nodeCount;
+
+	// State of the head being processed, whose scanner results Shift wants
+	int scanState;
+	final HashMap<Pattern,Matcher> matchers = new HashMap<>();
+
+	/**
+	 * All the stack heads at one input offset.
+	 */
+	static class Frontier {
+		final FilePos position;
+		final ArrayList<StackHead> heads = new ArrayList<>();
+		final ArrayDeque<Task> tasks = new ArrayDeque<>();
+		
+		// Open-addressed index of the heads by state number
+		StackHead[] index = new StackHead[8];
+
+		// Heads that were built on a zero-length node, so paths from them can pass through other heads in this frontier
+		final ArrayList<StackHead> zeroLength = new ArrayList<>();
+
+		Frontier(FilePos position) {
+			this.position = position;
+		}
+		
+		StackHead get(int state) {
+			final int mask = index.length - 1;
+			for(int i=slot(state) & mask; ; i = (i+1) & mask) {
+				final StackHead head = index[i];
+				if(head == null || head.stateNumber == state)
+					return head;
+			}
+		}
+		
+		void add(StackHead head) {
+			heads.add(head);
+			if(heads.size() * 2 > index.length) {
+				index = new StackHead[index.length * 2];
+				for(StackHead h : heads) {
+					put(h);
+				}
+			} else {
+				put(head);
+			}
+		}
+		
+		private static int slot(int state) {
+			final int h = state * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+		
+		private void put(StackHead head) {
+			final int mask = index.length - 1;
+			int i = slot(head.stateNumber) & mask;
+			while(index[i] != null) i = (i+1) & mask;
+			index[i] = head;
+		}
+	}
+
+	/**
+	 * Memo of the terminals matched at one offset, shared by every head that reads a token
+	 * there.  More than one frontier can start tokens at the same offset when there is
+	 * ignored text in between; the scanner results are shared by all of them, but
+	 * tokens hold their ignored prefix and so only by those with the same one.
+	 */
+	static class Matches {
+		final CharSequence text;
+		final HashMap<Scanner,int[]> scans = new HashMap<>();
+		final HashMap<Symbol,Node> tokens = new HashMap<>(); // Maps to null for no match
+		int ignoredStart = -1;
+		Matches(CharSequence text) {
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Thrown from deep inside an action when the budget runs out, and turned into a
+	 * ParseBudgetExceededException by parseForest().
+	 */
+	static class OverBudget extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final Limit limit;
+		OverBudget(Limit limit) {
+			super(limit.name(), null, false, false);
+			this.limit = limit;
+		}
+	}
+
+	/**
+	 * Apply the actions for a head; if via is given only the paths through that link are considered.
+	 */
+	static class Task {
+		final StackHead head;
+		final StackLink via;
+		Task(StackHead head, StackLink via) {
+			this.head = head;
+			this.via = via;
+		}
+	}
+
+	public ParseSession(Automaton automaton, ParserReader input) throws IOException {
+		this.automaton = automaton;
+		this.table = automaton.getParseTable();
+		this.input = input;
+		final Node start = Marker.START_OF_FILE.match(input, null, "");
+		this.root = new StackHead(0, null, start.getFileRange().getEnd(), automaton);
+		root.addLink(new StackLink(null, start, Priority.DEFAULT, table.getSymbolNumber(start.symbol), table.getPriorityNumber(Priority.DEFAULT)));
+		getFrontier(root.position).add(root);
+		liveHeads = peakHeads = 1;
+	}
+
+	/**
+	 * Parse the input, expecting exactly one way to parse it.
+	 * 
+	 * @throws AmbiguousInputException If the input can be parsed more than one way; the exception holds the parse forest
+	 */
+	public Node parse() throws IOException, SyntaxError, AmbiguousInputException, ParseBudgetExceededException {
+		final ParseForest forest = parseForest();
+		if(ambiguous && forest.isAmbiguous())
+			throw new AmbiguousInputException(forest);
+		return forest.root;
+	}
+
+	/**
+	 * Parse the input, returning all the ways it could be parsed as a forest.
+	 * 
+	 * @throws AmbiguousInputException Only if the complete parses cannot be packed into one root
+	 */
+	public ParseForest parseForest() throws IOException, SyntaxError, AmbiguousInputException, ParseBudgetExceededException {
+		FilePos furthest = root.position;
+		startTime = System.nanoTime();
+		try {
+			while(!frontiers.isEmpty()) {
+				current = frontiers.pollFirstEntry().getValue();
+				furthest = current.position;
+				checkTime();
+				process(current);
+				liveHeads -= current.heads.size();
+			}
+		} catch(EOFException e) {
+			throw new SyntaxError("Passed EOF during parse. (BUG?)", input.getFileRange(input.getFilePos()));
+		} catch(OverBudget e) {
+			throw new ParseBudgetExceededException(e.limit, furthest, peakHeads, actionCount, nodeCount, System.nanoTime() - startTime);
+		}
+		if(completed.size() == 1) {
+			return new ParseForest(completed.get(0));
+		} else if(completed.size() > 1){
+			throw new AmbiguousInputException(completed.toArray(new Node[completed.size()]));
+		} else {
+			// No successful parses
+			throw new SyntaxError("Failed to parse", input.getFileRange(furthest));
+		}
+	}
+
+	void process(Frontier frontier) throws IOException {
+		// Seek to the end of the last token we read; nothing before it is needed again, since
+		// the frontiers are processed in order and tokens and layout are never read backwards
+		input.seek(frontier.position);
+		input.release(frontier.position.offset);
+
+		// Skip over whitespace and comments
+		final Layout ignored = input.skipIgnored(automaton.ignore);
+		final FilePos tokenStart = input.getFilePos();
+		final int next = input.read();
+		this.tokenStart = tokenStart;
+
+		// Nothing will be read before this frontier again
+		matches.headMap(frontier.position.offset).clear();
+		currentMatches = matches.get(tokenStart.offset);
+		if(currentMatches == null)
+			matches.put(tokenStart.offset, currentMatches = new Matches(input.charsFrom(tokenStart.offset)));
+		if(currentMatches.ignoredStart != ignored.start.offset) {
+			currentMatches.tokens.clear();
+			currentMatches.ignoredStart = ignored.start.offset;
+		}
+
+		for(StackHead head : frontier.heads) {
+			frontier.tasks.add(new Task(head, null));
+		}
+		while(!frontier.tasks.isEmpty()) {
+			if(pool != null && frontier.tasks.size() >= minParallelTasks) {
+				processInParallel(frontier, next, ignored);
+				continue;
+			}
+			final Task task = frontier.tasks.removeFirst();
+			if(task.via == null)
+				task.head.processed = true;
+			apply(task, next, ignored, false);
+		}
+	}
+
+	/**
+	 * Apply the actions for one task.
+	 * 
+	 * @param skipReduces If true, leave out the reductions because they were already worked out
+	 */
+	private void apply(Task task, int next, Layout ignored, boolean skipReduces) throws IOException {
+		final StackHead head = task.head;
+		final int state = head.stateNumber;
+		scanState = state;
+		if(!skipReduces) {
+			for(Reduce reduce : table.reduces[state]) {
+				if(reduce.lookahead != null && !reduce.lookahead.allows(next))
+					continue; // Can't succeed with this character next
+				countActions(1);
+				reduce.apply(this, head, task.via, input, ignored);
+			}
+		}
+		for(Shift shift : table.shifts[state]) {
+			if(shift.lookahead != null && !shift.lookahead.allows(next))
+				continue;
+			countActions(1);
+			input.seek(tokenStart);
+			shift.apply(this, head, task.via, input, ignored);
+		}
+		for(Accept accept : table.accepts[state]) {
+			if(accept.lookahead != null && !accept.lookahead.allows(next))
+				continue;
+			countActions(1);
+			input.seek(tokenStart);
+			accept.apply(this, head, task.via, input, ignored);
+		}
+	}
+
+	// How many actions to apply between looking at the clock and the cancelled flag
+	private static final int CHECK_INTERVAL = 256;
+
+	private void countActions(int count) {
+		final long before = actionCount;
+		actionCount += count;
+		if(budget == null)
+			return;
+		if(actionCount > budget.maxActions)
+			throw new OverBudget(Limit.ACTIONS);
+		if(before / CHECK_INTERVAL != actionCount / CHECK_INTERVAL)
+			checkTime();
+	}
+
+	private void checkTime() {
+		if(budget == null)
+			return;
+		if(budget.isCancelled())
+			throw new OverBudget(Limit.CANCELLED);
+		if(budget.maxNanos != Long.MAX_VALUE && System.nanoTime() - startTime > budget.maxNanos)
+			throw new OverBudget(Limit.TIME);
+	}
+
+	/**
+	 * Process all the waiting tasks of a frontier at once, with the search for paths to
+	 * reduce (which only reads the stack) spread across the pool.  The nodes for those
+	 * paths are then built and pushed one task at a time, in the order the tasks were
+	 * queued, along with the shifts and accepts, which use the reader.  Building waits
+	 * for this thread because it can link new nodes into existing ones.  So the result
+	 * doesn't depend on how the threads were scheduled.  Any tasks the pushes create
+	 * are left for the next round.
+	 */
+	private void processInParallel(Frontier frontier, final int next, Layout ignored) throws IOException {
+		final Task[] batch = frontier.tasks.toArray(new Task[frontier.tasks.size()]);
+		frontier.tasks.clear();
+		for(Task task : batch) {
+			if(task.via == null)
+				task.head.processed = true;
+		}
+		// Each task's pushes go in its own slot, so the threads don't share a list
+		final List<List<Push>> pushes = new ArrayList<>(Collections.<List<Push>>nCopies(batch.length, null));
+		final int[] reduceCounts = new int[batch.length];
+		pool.invoke(new ReduceBatch(batch, pushes, reduceCounts, 0, batch.length, next));
+		for(int t=0; t < batch.length; t++) {
+			countActions(reduceCounts[t]);
+			apply(batch[t], next, ignored, true);
+			for(Push p : pushes.get(t)) {
+				push(p.state, p.position, p.left, p.reduce.symbol.build(p.nodes), p.reduce.priority);
+			}
+		}
+	}
+
+	/**
+	 * Work out the reductions for a range of tasks, splitting it up to run in parallel.
+	 */
+	class ReduceBatch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Task[] batch;
+		final List<List<Push>> pushes;
+		final int[] reduceCounts;
+		final int start, end, next;
+
+		ReduceBatch(Task[] batch, List<List<Push>> pushes, int[] reduceCounts, int start, int end, int next) {
+			this.batch = batch;
+			this.pushes = pushes;
+			this.reduceCounts = reduceCounts;
+			this.start = start;
+			this.end = end;
+			this.next = next;
+		}
+
+		@Override
+		protected void compute() {
+			if(end - start > minParallelTasks / 2 && end - start > 1) {
+				final int mid = (start + end) >>> 1;
+				invokeAll(new ReduceBatch(batch, pushes, reduceCounts, start, mid, next), new ReduceBatch(batch, pushes, reduceCounts, mid, end, next));
+				return;
+			}
+			for(int t=start; t < end; t++) {
+				final StackHead head = batch[t].head;
+				final ArrayList<Push> out = new ArrayList<>();
+				for(Reduce reduce : table.reduces[head.stateNumber]) {
+					if(reduce.lookahead != null && !reduce.lookahead.allows(next))
+						continue;
+					reduceCounts[t]++;
+					reduce.collect(ParseSession.this, head, batch[t].via, out);
+				}
+				pushes.set(t, out);
+			}
+		}
+	}
+
+	/**
+	 * A push worked out by a reduction but not made yet; the node isn't built until then.
+	 */
+	static class Push {
+		final int state;
+		final FilePos position;
+		final StackHead left;
+		final Node[] nodes;
+		final Reduce reduce;
+		Push(int state, FilePos position, StackHead left, Node[] nodes, Reduce reduce) {
+			this.state = state;
+			this.position = position;
+			this.left = left;
+			this.nodes = nodes;
+			this.reduce = reduce;
+		}
+	}
+
+	/**
+	 * Process large batches of stack heads using the given pool.  This only pays off
+	 * when there are many heads at each position, as with very ambiguous grammars.
+	 * 
+	 * @param pool Pool to use, or null to process heads on the calling thread only
+	 * @param minTasks Smallest number of waiting heads to bother spreading across the pool
+	 */
+	public ParseSession parallel(ForkJoinPool pool, int minTasks) {
+		this.pool = pool;
+		this.minParallelTasks = Math.max(1, minTasks);
+		return this;
+	}
+
+	/**
+	 * Stop the parse with a ParseBudgetExceededException if it goes over the budget.
+	 * 
+	 * @param budget Limits to keep to, or null for none
+	 */
+	public ParseSession budget(ParseBudget budget) {
+		this.budget = budget;
+		return this;
+	}
+
+	/**
+	 * Get the token for a terminal from the scanner of the state being processed.
+	 * 
+	 * @param index Index of the terminal in the scanner's results
+	 * @return The token, with the input positioned after it, or null if the terminal didn't match
+	 */
+	Node scanned(int index, Symbol symbol, Layout ignored) throws IOException {
+		final Matches m = currentMatches;
+		Node token = m.tokens.get(symbol);
+		if(token == null && !m.tokens.containsKey(symbol)) {
+			final Scanner scanner = table.scanners[scanState];
+			int[] lengths = m.scans.get(scanner);
+			if(lengths == null)
+				m.scans.put(scanner, lengths = scanner.scan(m.text, matchers));
+			final int length = lengths[index];
+			if(length >= 0) {
+				input.seek(tokenStart.offset + length);
+				final CharSequence tokenText = input.getChars(tokenStart.offset, tokenStart.offset + length);
+				token = ((Terminal)symbol).build(input.getFileRange(tokenStart), tokenText, ignored.getChars());
+			}
+			m.tokens.put(symbol, token);
+		}
+		if(token != null)
+			input.seek(token.getFileRange().getEnd());
+		return token;
+	}
+
+	/**
+	 * Match a symbol at the start of the current frontier's tokens.  The result for a
+	 * terminal is remembered for the other heads that try it here; terminals are
+	 * assumed to match the same way whatever stack head they are tried for.
+	 * 
+	 * @return The node, with the input positioned after it, or null if it didn't match
+	 */
+	Node match(Symbol symbol, StackHead head, Layout ignored) throws IOException {
+		if(!(symbol instanceof Terminal))
+			return symbol.match(input, head, ignored.getChars());
+		final Matches m = currentMatches;
+		Node token = m.tokens.get(symbol);
+		if(token == null && !m.tokens.containsKey(symbol)) {
+			token = symbol.match(input, head, ignored.getChars());
+			m.tokens.put(symbol, token);
+		}
+		if(token != null)
+			input.seek(token.getFileRange().getEnd());
+		return token;
+	}
+
+	Frontier getFrontier(FilePos position) {
+		if(current != null) {
+			if(position.offset == current.position.offset)
+				return current;
+			if(position.offset < current.position.offset)
+				throw new IllegalStateException("Cannot add a stack head behind the current frontier");
+		}
+		Frontier frontier = frontiers.get(position.offset);
+		if(frontier == null) frontiers.put(position.offset, frontier = new Frontier(position));
+		return frontier;
+	}
+
+	/**
+	 * Add a path to the given state at the given position.  If there is already a head
+	 * for that state there, the path is merged into it as a new link.
+	 */
+	public void push(int state, FilePos position, StackHead left, Node node, Priority priority) {
+		if(++nodeCount > (budget == null ? Long.MAX_VALUE : budget.maxNodes))
+			throw new OverBudget(Limit.NODES);
+		final Frontier frontier = getFrontier(position);
+		final StackLink link = new StackLink(left, node, priority, table.getSymbolNumber(node.symbol), table.getPriorityNumber(priority));
+		StackHead head = frontier.get(state);
+		if(head == null) {
+			if(++liveHeads > peakHeads) {
+				peakHeads = liveHeads;
+				if(budget != null && peakHeads > budget.maxHeads)
+					throw new OverBudget(Limit.HEADS);
+			}
+			head = new StackHead(state, table.states[state], position, automaton);
+			head.addLink(link);
+			if(node instanceof Element)
+				((Element)node).link((Element)node);
+			frontier.add(head);
+			if(frontier == current)
+				frontier.tasks.add(new Task(head, null));
+		} else {
+			for(StackLink existing : head.getLinksFrom(left)) {
+				if(existing.left == left && existing.priority.equals(priority)) {
+					if(existing.node.equals(node))
+						return; // Same path reached twice
+					if(existing.node instanceof Element && node instanceof Element) {
+						// Local ambiguity: pack the new derivation into the node the existing
+						// link carries, so anything already built on that node shares it
+						if(((Element)existing.node).merge((Element)node))
+							ambiguous = true;
+						((Element)node).link((Element)existing.node);
+						return;
+					}
+				}
+			}
+			head.addLink(link);
+			if(node instanceof Element)
+				((Element)node).link((Element)node);
+			if(head.processed) {
+				// Catch up on the reductions through the new link, including those that
+				// reach it over zero-length nodes from other heads in this frontier
+				frontier.tasks.add(new Task(head, link));
+				for(StackHead dependent : frontier.zeroLength) {
+					if(dependent != head && dependent.processed)
+						frontier.tasks.add(new Task(dependent, link));
+				}
+			}
+		}
+		if(left != null && left.position.offset == position.offset && !frontier.zeroLength.contains(head))
+			frontier.zeroLength.add(head);
+		if(Parser.debug) System.out.println((left == null ? null : left.state)+" -> "+head.state+" => "+node);
+	}
+
+	/**
+	 * Record a successful parse of the whole input.
+	 */
+	public void accept(Node node) {
+		for(Node existing : completed) {
+			if(existing.equals(node))
+				return;
+			if(existing instanceof Element && node instanceof Element && existing.symbol.equals(node.symbol)) {
+				// Parses that differ only in priority are still the same parse of the input
+				if(((Element)existing).merge((Element)node))
+					ambiguous = true;
+				return;
+			}
+		}
+		completed.add(node);
+	}
+}
@@ -0,0 +1,250 @@
+package felix.parser.glr.automaton;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import felix.parser.glr.grammar.Priority;
+import felix.parser.glr.grammar.Marker;
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.grammar.SymbolWithPriorityRequirement;
+import felix.parser.glr.grammar.Terminal;
+
+/**
+ * The automaton's table compiled into arrays indexed by state and symbol numbers, so
+ * that the parser never hashes or compares a State while parsing.
+ * <p>
+ * State zero is the initial state (the null state in the automaton).  The actions of
+ * state s are actions[rowStart[s]] up to actions[rowStart[s+1]-1], in the same order as
+ * the automaton's action sets.  Shifts into states without any actions are left out,
+ * since nothing could ever come of them.
+ * <p>
+ * For parsing, each row is also split up by kind of action into reduces, shifts
+ * and accepts, keeping the order within each kind, so the parser can loop over plain
+ * arrays without checking what each action is.
+ */
+public class ParseTable {
+	public static final int NO_STATE = -1;
+	/** Number for a symbol or priority that this table never puts on the stack */
+	public static final int NO_NUMBER = -2;
+
+	/** State for each state number */
+	public final State[] states;
+
+	/** Symbols that can be reduced, by symbol number */
+	public final Symbol[] symbols;
+
+	/** Offset of the first action for each state in actions; has one extra entry for the end of the last row */
+	public final int[] rowStart;
+
+	/** Actions of all states, row by row */
+	public final Action[] actions;
+
+	/** State number to move to after reducing a symbol, at gotos[state * symbols.length + symbol], or NO_STATE */
+	public final int[] gotos;
+
+	/** Scanner for the keywords and patterns each state can shift, or null if it has none; states with the same terminals share one */
+	public final Scanner[] scanners;
+
+	/** The reduces, shifts and accepts of each state, in the order they appear in its row */
+	public final Reduce[][] reduces;
+	public final Shift[][] shifts;
+	public final Accept[][] accepts;
+
+	// Numbers for every symbol and priority that can be on a stack link; the reduced
+	// symbols keep their numbers from symbols, and the rest follow on from them
+	private final HashMap<Symbol,Integer> symbolNumbers = new HashMap<>();
+	private final HashMap<Priority,Integer> priorityNumbers = new HashMap<>();
+
+	private static final Reduce[] NO_REDUCES = new Reduce[0];
+	private static final Shift[] NO_SHIFTS = new Shift[0];
+	private static final Accept[] NO_ACCEPTS = new Accept[0];
+
+	ParseTable(State[] states, Symbol[] symbols, int[] rowStart, Action[] actions, int[] gotos) {
+		this.states = states;
+		this.symbols = symbols;
+		this.rowStart = rowStart;
+		this.actions = actions;
+		this.gotos = gotos;
+		this.reduces = new Reduce[states.length][];
+		this.shifts = new Shift[states.length][];
+		this.accepts = new Accept[states.length][];
+		for(int s=0; s < states.length; s++) {
+			reduces[s] = row(s, Reduce.class, NO_REDUCES);
+			shifts[s] = row(s, Shift.class, NO_SHIFTS);
+			accepts[s] = row(s, Accept.class, NO_ACCEPTS);
+		}
+		numberLinks();
+		for(Action action : actions) {
+			if(action instanceof Reduce)
+				((Reduce)action).compile(this);
+		}
+		this.scanners = buildScanners();
+	}
+
+	/**
+	 * Number the symbols and priorities that stack links can have: the start marker,
+	 * what is shifted or reduced, and what the reductions look for.  Stack links only
+	 * ever get the priorities of the actions (or the default, for the start).
+	 */
+	private void numberLinks() {
+		for(Symbol symbol : symbols) {
+			number(symbol);
+		}
+		number(Marker.START_OF_FILE);
+		priorityNumbers.put(Priority.DEFAULT, 0);
+		for(Action action : actions) {
+			if(!priorityNumbers.containsKey(action.priority))
+				priorityNumbers.put(action.priority, priorityNumbers.size());
+			if(action instanceof Shift) {
+				number(((Shift)action).symbol);
+			} else if(action instanceof Reduce) {
+				for(Symbol part : ((Reduce)action).parts) {
+					number(part instanceof SymbolWithPriorityRequirement ? ((SymbolWithPriorityRequirement)part).getSymbol() : part);
+				}
+			}
+		}
+	}
+
+	private void number(Symbol symbol) {
+		if(!symbolNumbers.containsKey(symbol))
+			symbolNumbers.put(symbol, symbolNumbers.size());
+	}
+
+	/**
+	 * Get the number this table gives a symbol, or NO_NUMBER.  Symbols with the same id,
+	 * such as a SymbolRef and the symbol it refers to, get the same number.
+	 */
+	public int getSymbolNumber(Symbol symbol) {
+		final Integer number = symbolNumbers.get(symbol);
+		return number == null ? NO_NUMBER : number;
+	}
+
+	/**
+	 * Get the number this table gives a priority, or NO_NUMBER.
+	 */
+	public int getPriorityNumber(Priority priority) {
+		final Integer number = priorityNumbers.get(priority);
+		return number == null ? NO_NUMBER : number;
+	}
+
+	/**
+	 * Number of priorities that stack links can have.
+	 */
+	public int getPriorityCount() {
+		return priorityNumbers.size();
+	}
+
+	Set<Priority> priorities() {
+		return priorityNumbers.keySet();
+	}
+
+	// Pick the actions of one kind out of a row
+	private <T extends Action> T[] row(int state, Class<T> kind, T[] none) {
+		final ArrayList<T> result = new ArrayList<>();
+		for(int i=rowStart[state]; i < rowStart[state+1]; i++) {
+			if(kind.isInstance(actions[i]))
+				result.add(kind.cast(actions[i]));
+		}
+		return result.isEmpty() ? none : result.toArray(none);
+	}
+
+	/**
+	 * Build a scanner for each state and tell each shift where its result will be.
+	 */
+	private Scanner[] buildScanners() {
+		final Scanner[] scanners = new Scanner[states.length];
+		final HashMap<List<Terminal>,Scanner> shared = new HashMap<>();
+		for(int s=0; s < states.length; s++) {
+			final ArrayList<Terminal> terminals = new ArrayList<>();
+			for(Shift shift : shifts[s]) {
+				shift.scanIndex = -1;
+				if(shift.symbol instanceof Terminal && Scanner.canScan((Terminal)shift.symbol)) {
+					int index = terminals.indexOf(shift.symbol);
+					if(index == -1) {
+						index = terminals.size();
+						terminals.add((Terminal)shift.symbol);
+					}
+					shift.scanIndex = index;
+				}
+			}
+			if(terminals.isEmpty())
+				continue;
+			Scanner scanner = shared.get(terminals);
+			if(scanner == null)
+				shared.put(terminals, scanner = new Scanner(terminals));
+			scanners[s] = scanner;
+		}
+		return scanners;
+	}
+
+	/**
+	 * Number the states and symbols of the automaton and flatten its table.
+	 */
+	public static ParseTable compile(Automaton automaton) {
+		// Number the states; the initial state is always zero
+		final LinkedHashMap<State,Integer> stateNumbers = new LinkedHashMap<>();
+		stateNumbers.put(null, 0);
+		for(Map.Entry<State, Set<Action>> entry : automaton.table.entrySet()) {
+			if(!entry.getValue().isEmpty() && !stateNumbers.containsKey(entry.getKey()))
+				stateNumbers.put(entry.getKey(), stateNumbers.size());
+		}
+		final State[] states = stateNumbers.keySet().toArray(new State[stateNumbers.size()]);
+
+		// Number the symbols that are reduced
+		final LinkedHashMap<Symbol,Integer> symbolNumbers = new LinkedHashMap<>();
+		for(Set<Action> actionSet : automaton.table.values()) {
+			for(Action action : actionSet) {
+				if(action instanceof Reduce) {
+					final Reduce reduce = (Reduce) action;
+					Integer number = symbolNumbers.get(reduce.symbol);
+					if(number == null)
+						symbolNumbers.put(reduce.symbol, number = symbolNumbers.size());
+					reduce.symbolNumber = number;
+				}
+			}
+		}
+		final Symbol[] symbols = symbolNumbers.keySet().toArray(new Symbol[symbolNumbers.size()]);
+
+		// Flatten the action sets into rows
+		final int[] rowStart = new int[states.length+1];
+		final ArrayList<Action> actions = new ArrayList<>();
+		for(int s=0; s < states.length; s++) {
+			rowStart[s] = actions.size();
+			final Set<Action> actionSet = automaton.getActions(states[s]);
+			if(actionSet == null)
+				continue;
+			for(Action action : actionSet) {
+				if(action instanceof Shift) {
+					final Shift shift = (Shift) action;
+					final Integer target = stateNumbers.get(shift.state);
+					if(target == null)
+						continue; // Shifting into a dead end
+					shift.target = target;
+				}
+				actions.add(action);
+			}
+		}
+		rowStart[states.length] = actions.size();
+
+		// Work out where each reduction goes from each state
+		final int[] gotos = new int[states.length * symbols.length];
+		for(int s=0; s < states.length; s++) {
+			for(int x=0; x < symbols.length; x++) {
+				final Integer target = stateNumbers.get(new State(states[s], symbols[x]));
+				gotos[s * symbols.length + x] = target == null ? NO_STATE : target;
+			}
+		}
+		return new ParseTable(states, symbols, rowStart, actions.toArray(new Action[actions.size()]), gotos);
+	}
+
+	/**
+	 * Get the state to move to after reducing the given symbol number on top of the given state.
+	 */
+	public int getGoto(int state, int symbol) {
+		return gotos[state * symbols.length + symbol];
+	}
+}
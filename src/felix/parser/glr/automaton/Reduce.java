@@ -1,17 +1,31 @@
 package felix.parser.glr.automaton;
 
 import java.util.Arrays;
+import java.util.List;
 
 import felix.parser.glr.Parser.StackHead;
+import felix.parser.glr.Parser.StackLink;
 import felix.parser.glr.grammar.Priority;
 import felix.parser.glr.grammar.Symbol;
+import felix.parser.glr.grammar.SymbolWithPriorityRequirement;
 import felix.parser.glr.parsetree.Node;
 import felix.parser.glr.parsetree.Element;
+import felix.parser.util.Layout;
 import felix.parser.util.ParserReader;
 
 public class Reduce extends Action {
 	public final Symbol symbol;
 	public final Symbol[] parts;
+	
+	// Number of the reduced symbol in the compiled parse table
+	int symbolNumber = -1;
+
+	// Compiled by the parse table: the table's number for the symbol each part needs on
+	// the stack (or -1 to ask the part's compatibleWith()), and for parts with a priority
+	// requirement a bitset of the table's numbers for the priorities that meet it
+	int[] partNumbers;
+	long[][] allowedPriorities;
+
 	public Reduce(Symbol symbol, Symbol[] parts, Priority priority) {
 		super(priority);
 		this.symbol = symbol;
@@ -37,30 +51,87 @@ public class Reduce extends Action {
 		return 0;
 	}
 	
+	/**
+	 * Work out the part checks using the table's numbers for the symbols and priorities
+	 * of stack links, so reducing doesn't need to call compatibleWith().
+	 */
+	void compile(ParseTable table) {
+		partNumbers = new int[parts.length];
+		allowedPriorities = new long[parts.length][];
+		for(int i=0; i < parts.length; i++) {
+			final Symbol part = parts[i];
+			if(part instanceof SymbolWithPriorityRequirement) {
+				final SymbolWithPriorityRequirement withReq = (SymbolWithPriorityRequirement) part;
+				partNumbers[i] = table.getSymbolNumber(withReq.getSymbol());
+				final long[] allowed = new long[((table.getPriorityCount() - 1) >> 6) + 1];
+				for(Priority p : table.priorities()) {
+					if(withReq.getReq().check(p)) {
+						final int n = table.getPriorityNumber(p);
+						allowed[n >> 6] |= 1L << n;
+					}
+				}
+				allowedPriorities[i] = allowed;
+			} else if(!part.hasPriorityCheck()) {
+				partNumbers[i] = table.getSymbolNumber(part);
+			} else {
+				partNumbers[i] = -1;
+			}
+		}
+	}
+
 	@Override
-	public StackHead apply(StackHead head, ParserReader reader, String ignored) {
-		Node[] nodes = new Node[parts.length];
-		// Match against the nodes on the stack; if we match the whole pattern then we can reduce.
-		State state = head.state;
-		for(int i=parts.length-1; i >= 0; i--) {
-			Symbol sym = parts[i];
-			if(head == null) {
-				return null; // Not enough nodes available
+	public void apply(ParseSession session, StackHead head, StackLink via, ParserReader reader, Layout ignored) {
+		// Match against the nodes on the stack; every path that matches the whole pattern can be reduced.
+		reduce(session, head, head, via, parts.length-1, new Node[parts.length], null);
+	}
+
+	/**
+	 * Find the paths to reduce without changing the stack or building any nodes, adding
+	 * what should be pushed to the list instead.  This can be used from several threads
+	 * at once.
+	 */
+	void collect(ParseSession session, StackHead head, StackLink via, List<ParseSession.Push> out) {
+		reduce(session, head, head, via, parts.length-1, new Node[parts.length], out);
+	}
+
+	/**
+	 * Match parts[i] against each link of the given head, then continue along that link
+	 * for the parts before it.
+	 * 
+	 * @param via If non-null, the path must pass through this link
+	 * @param out If non-null, collect the pushes here instead of making them
+	 */
+	private void reduce(ParseSession session, StackHead top, StackHead head, StackLink via, int i, Node[] nodes, List<ParseSession.Push> out) {
+		final int number = partNumbers[i];
+		final long[] allowed = allowedPriorities[i];
+		for(int k=0; k < head.links.size(); k++) {
+			final StackLink link = head.links.get(k);
+			if(link.left == null) {
+				continue; // Not enough nodes available
+			}
+			if(number < 0 ? !parts[i].compatibleWith(link.node.symbol, link.priority) : link.symbolNumber != number) {
+				continue; // Should be the same symbol in the stack as we had in this pattern
+			}
+			if(allowed != null) {
+				final int p = link.priorityNumber;
+				if(p < 0 || (allowed[p >> 6] & (1L << p)) == 0)
+					continue; // The rule that made the node doesn't meet the priority requirement
 			}
-			Node node = head.node;
-			if(!sym.compatibleWith(node.symbol, head.priority)) {
-				return null; // Should be the same symbol in the stack as we had in this pattern
+			nodes[i] = link.node;
+			final StackLink remaining = link == via ? null : via;
+			if(i > 0) {
+				reduce(session, top, link.left, remaining, i-1, nodes, out);
+			} else if(remaining == null) {
+				final StackHead base = link.left;
+				final int target = session.table.getGoto(base.stateNumber, symbolNumber);
+				if(target == ParseTable.NO_STATE)
+					continue; // Nothing can follow this reduction
+				if(out != null)
+					out.add(new ParseSession.Push(target, top.position, base, nodes.clone(), this));
+				else
+					session.push(target, top.position, base, symbol.build(nodes.clone()), priority);
 			}
-			nodes[i] = node;
-			head = head.left;
-			state = state.left;
 		}
-		final Node newNode = symbol.build(nodes);
-		final State newState = new State(head.state, symbol);
-		final StackHead newStack = new StackHead(head, newState, newNode, priority);
-		//System.out.println("Reduce "+this+" head.state="+(head==null?null:head.state)+" state="+state+" new stack:\n"+newStack);
-		return newStack;
-		
 	}
 	
 	@Override
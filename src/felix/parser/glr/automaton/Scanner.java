@@ -0,0 +1,148 @@
+package felix.parser.glr.automaton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import felix.parser.glr.grammar.KeywordTerminal;
+import felix.parser.glr.grammar.PatternTerminal;
+import felix.parser.glr.grammar.Terminal;
+
+/**
+ * Matches all the keyword and pattern terminals a state can shift in one go.
+ * <p>
+ * The keywords are merged into a trie, so one pass over the input finds every
+ * keyword that matches.  Java regular expressions aren't all regular (they have
+ * backreferences, lookaround and lazy quantifiers), so they can't be merged into
+ * one DFA, and even the regular ones take the first alternative that matches rather
+ * than the longest, which a DFA doesn't do.  Instead the patterns are looked up by the
+ * next character in a table made up front, so only those that could start with it
+ * are run, one matcher each, against the same view of the input.  Above 255 every
+ * pattern is run.
+ * <p>
+ * Results are the same as calling match() on each terminal separately.
+ */
+public class Scanner {
+	/** Terminals in the order their results are reported */
+	public final Terminal[] terminals;
+
+	private final TrieNode keywords = new TrieNode();
+	private final int[] patternIndexes;
+	// patternsByFirst[ch+1] lists the patterns that can start with ch, for ch from -1 (end of input) up to 255
+	private final int[][] patternsByFirst = new int[257][];
+
+	/**
+	 * Node of the keyword trie; next[i] follows chars[i], which are sorted.
+	 */
+	static class TrieNode {
+		char[] chars = new char[0];
+		TrieNode[] next = new TrieNode[0];
+		int[] accepts = new int[0];
+
+		TrieNode get(char ch, boolean create) {
+			int i = Arrays.binarySearch(chars, ch);
+			if(i >= 0) return next[i];
+			if(!create) return null;
+			i = -i - 1;
+			final TrieNode node = new TrieNode();
+			chars = insert(chars, i, ch);
+			final TrieNode[] newNext = new TrieNode[next.length+1];
+			System.arraycopy(next, 0, newNext, 0, i);
+			System.arraycopy(next, i, newNext, i+1, next.length-i);
+			newNext[i] = node;
+			next = newNext;
+			return node;
+		}
+
+		private static char[] insert(char[] array, int i, char ch) {
+			final char[] result = new char[array.length+1];
+			System.arraycopy(array, 0, result, 0, i);
+			System.arraycopy(array, i, result, i+1, array.length-i);
+			result[i] = ch;
+			return result;
+		}
+	}
+
+	public Scanner(List<Terminal> terminals) {
+		super();
+		this.terminals = terminals.toArray(new Terminal[terminals.size()]);
+		final ArrayList<Integer> patterns = new ArrayList<>();
+		for(int i=0; i < this.terminals.length; i++) {
+			final Terminal t = this.terminals[i];
+			if(t instanceof KeywordTerminal) {
+				final String text = ((KeywordTerminal)t).text;
+				TrieNode node = keywords;
+				for(int k=0; k < text.length(); k++) {
+					node = node.get(text.charAt(k), true);
+				}
+				node.accepts = Arrays.copyOf(node.accepts, node.accepts.length+1);
+				node.accepts[node.accepts.length-1] = i;
+			} else if(t instanceof PatternTerminal) {
+				patterns.add(i);
+			} else {
+				throw new IllegalArgumentException("Can't scan for "+t);
+			}
+		}
+		patternIndexes = new int[patterns.size()];
+		for(int i=0; i < patternIndexes.length; i++) {
+			patternIndexes[i] = patterns.get(i);
+		}
+		final int[] starting = new int[patternIndexes.length];
+		for(int ch=-1; ch < 256; ch++) {
+			int count = 0;
+			for(int i : patternIndexes) {
+				if(this.terminals[i].canStartWith(ch))
+					starting[count++] = i;
+			}
+			patternsByFirst[ch+1] = Arrays.copyOf(starting, count);
+		}
+	}
+
+	/**
+	 * Check whether the scanner can match the given terminal for a state.  Only plain
+	 * keywords and patterns are scanned; subclasses might have their own ideas about matching.
+	 */
+	public static boolean canScan(Terminal t) {
+		return t.getClass() == KeywordTerminal.class || t.getClass() == PatternTerminal.class;
+	}
+
+	/**
+	 * Match every terminal at the start of the text.
+	 *
+	 * @param matchers Matchers to reuse for the patterns, reset to the new text as needed; may be null
+	 * @return The length of the match for each terminal, or -1 where it didn't match
+	 */
+	public int[] scan(CharSequence text, Map<Pattern,Matcher> matchers) {
+		final int[] lengths = new int[terminals.length];
+		Arrays.fill(lengths, -1);
+
+		// Walk the trie as far as the input goes
+		TrieNode node = keywords;
+		for(int pos=0; node != null; pos++) {
+			for(int i : node.accepts) {
+				lengths[i] = pos;
+			}
+			if(pos >= text.length())
+				break;
+			node = node.get(text.charAt(pos), false);
+		}
+
+		final int first = text.length() == 0 ? -1 : text.charAt(0);
+		for(int i : first < 256 ? patternsByFirst[first+1] : patternIndexes) {
+			final PatternTerminal t = (PatternTerminal) terminals[i];
+			Matcher m = matchers == null ? null : matchers.get(t.re);
+			if(m == null) {
+				m = t.re.matcher(text);
+				if(matchers != null) matchers.put(t.re, m);
+			} else {
+				m.reset(text);
+			}
+			if(m.lookingAt() && m.end() > 0)
+				lengths[i] = m.end();
+		}
+		return lengths;
+	}
+}
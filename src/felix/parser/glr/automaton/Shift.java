@@ -3,15 +3,23 @@ package felix.parser.glr.automaton;
 import java.io.IOException;
 
 import felix.parser.glr.Parser.StackHead;
+import felix.parser.glr.Parser.StackLink;
 import felix.parser.glr.grammar.Priority;
 import felix.parser.glr.grammar.Symbol;
 import felix.parser.glr.parsetree.Node;
+import felix.parser.util.Layout;
 import felix.parser.util.ParserReader;
 
 public class Shift extends Action {
 	public final State state;
 	public final Symbol symbol;
 	
+	// Number of the target state in the compiled parse table
+	int target = ParseTable.NO_STATE;
+	
+	// Index of the symbol in the state's scanner results, or -1 if it matches by itself
+	int scanIndex = -1;
+	
 	public Shift(State state, Symbol symbol, Priority priority) {
 		this(symbol, state, priority);
 	}
@@ -28,12 +36,12 @@ public class Shift extends Action {
 	}
 	
 	@Override
-	public StackHead apply(StackHead head, ParserReader reader, String ignored) throws IOException {
-		Node node = symbol.match(reader, head, ignored);
+	public void apply(ParseSession session, StackHead head, StackLink via, ParserReader reader, Layout ignored) throws IOException {
+		if(via != null)
+			return; // The shift doesn't depend on the path, so it was already done for this head
+		Node node = scanIndex >= 0 ? session.scanned(scanIndex, symbol, ignored) : session.match(symbol, head, ignored);
 		if(node != null)
-			return new StackHead(head, this.state, node, priority);
-		else
-			return null;
+			session.push(target, node.getFileRange().getEnd(), head, node, priority);
 	}
 
 	@Override
@@ -51,6 +51,8 @@ public class State implements Comparable<State> {
 		if (getClass() != obj.getClass())
 			return false;
 		State other = (State) obj;
+		if (hash != other.hash)
+			return false;
 		if (left == null) {
 			if (other.left != null)
 				return false;
@@ -38,7 +38,7 @@ public class CharDelimitedTerminal extends Terminal {
 	}
 
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored)
+	public Node match(ParserReader input, StackHead head, CharSequence ignored)
 			throws IOException {
 		if(input.remaining() < 2)
 			return null; // Not enough input remaining for even the delimiters
@@ -51,13 +51,14 @@ public class CharDelimitedTerminal extends Terminal {
 			return null;
 		}
 
-		StringBuffer text = new StringBuffer();
-		text.append(startDelim);
 		boolean escaped=false;
 		int nestDepth=0;
 		for(;;) {
 			final int ch = input.read();
-			text.append((char)ch);
+			if(ch < 0) {
+				input.seek(start);
+				return null; // Never closed
+			}
 			
 			if(escaped) {
 				escaped = false;
@@ -73,7 +74,17 @@ public class CharDelimitedTerminal extends Terminal {
 				nestDepth += 1;
 			}
 		}
-		return new Token(input.getFileRange(start), this, text.toString(), ignored);
+		return new Token(input.getFileRange(start), this, input.getChars(start.offset, input.getCurrentOffset()), ignored);
+	}
+
+	@Override
+	public boolean canStartWith(int ch) {
+		return ch == startDelim;
+	}
+
+	@Override
+	public boolean canMatchEmpty() {
+		return false;
 	}
 
 }
@@ -38,7 +38,7 @@ public class DelimitedTerminal extends Terminal {
 	}
 
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored)
+	public Node match(ParserReader input, StackHead head, CharSequence ignored)
 			throws IOException {
 		if(input.remaining() < startDelim.length()+endDelim.length())
 			return null; // Not enough input remaining for even the delimiters
@@ -52,15 +52,16 @@ public class DelimitedTerminal extends Terminal {
 				return null;
 			}
 		}
-		StringBuffer text = new StringBuffer();
-		text.append(startDelim);
 		int endCharsMatched=0;
 		int startCharsMatched=0;
 		boolean escaped=false;
 		int nestDepth=0;
 		for(;;) {
 			final int ch = input.read();
-			text.append((char)ch);
+			if(ch < 0) {
+				input.seek(start);
+				return null; // Never closed
+			}
 			
 			if(escaped) {
 				escaped = false;
@@ -86,7 +87,17 @@ public class DelimitedTerminal extends Terminal {
 				}
 			}
 		}
-		return new Token(input.getFileRange(start), this, text.toString(), ignored);
+		return new Token(input.getFileRange(start), this, input.getChars(start.offset, input.getCurrentOffset()), ignored);
+	}
+
+	@Override
+	public boolean canStartWith(int ch) {
+		return startDelim.isEmpty() || ch == startDelim.charAt(0);
+	}
+
+	@Override
+	public boolean canMatchEmpty() {
+		return false;
 	}
 
 }
@@ -1,26 +1,30 @@
 package felix.parser.glr.grammar;
 
-import java.io.CharArrayReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
-import java.nio.CharBuffer;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import felix.parser.glr.Parser;
-import felix.parser.glr.automaton.Automaton;
 import felix.parser.glr.parsetree.Node;
+import felix.parser.glr.parsetree.ParseForest;
 import felix.parser.util.ParserReader;
+import felix.parser.util.TextEdit;
 
 public class Grammar {
 	public final Set<Symbol> symbols;
 	public final Symbol root;
 	public final Set<Terminal> ignore;
+	private volatile Parser parser;
 	
 	public Grammar(Set<Symbol> symbols, Symbol root, Set<Terminal> ignore) {
 		super();
@@ -39,64 +43,144 @@ public class Grammar {
 		this(buildSymbolSet(root,ignore), root, ignore);
 	}
 
+	/**
+	 * Collect every priority used by the rules, terminals and priority requirements of
+	 * the grammar, by id.
+	 */
+	public Map<String,Priority> collectPriorities() {
+		LinkedHashMap<String,Priority> priorities = new LinkedHashMap<>();
+		addPriority(priorities, Priority.DEFAULT);
+		for(Symbol sym : symbols) {
+			if(sym instanceof NonTerminal) {
+				for(Rule r : ((NonTerminal)sym).rules) {
+					addPriority(priorities, r.priority);
+				}
+			} else if(sym instanceof Terminal) {
+				addPriority(priorities, ((Terminal)sym).priority);
+			} else if(sym instanceof SymbolWithPriorityRequirement) {
+				addPriority(priorities, ((SymbolWithPriorityRequirement)sym).getReq().getPriority());
+			}
+		}
+		return priorities;
+	}
+
+	private static void addPriority(Map<String,Priority> priorities, Priority p) {
+		if(priorities.put(p.id, p) == null) {
+			for(Priority lower : p.lower) {
+				addPriority(priorities, lower);
+			}
+		}
+	}
+
+	/**
+	 * Compute a hash of the definition of the grammar: its symbols, rules, patterns,
+	 * priorities and ignored terminals.  Grammars with different fingerprints can't
+	 * share a parse table.
+	 * <p>
+	 * Terminals that match input with code of their own are only identified by their
+	 * class and id, so changes to that code are not detected.
+	 */
+	public long fingerprint() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("root ").append(root.id).append('\n');
+		for(Symbol sym : new TreeSet<>(symbols)) {
+			sb.append(sym.getClass().getName()).append(' ').append(sym);
+			if(sym instanceof NonTerminal) {
+				for(Rule r : ((NonTerminal)sym).rules) {
+					sb.append(" [").append(r.priority).append(']');
+				}
+			} else if(sym instanceof Terminal) {
+				sb.append(" [").append(((Terminal)sym).priority).append(']');
+				if(sym instanceof PatternTerminal)
+					sb.append(" flags ").append(((PatternTerminal)sym).re.flags());
+			}
+			sb.append('\n');
+		}
+		for(Priority p : collectPriorities().values()) {
+			sb.append("priority ").append(p).append(" > ").append(p.lower).append('\n');
+		}
+		for(Terminal t : new TreeSet<>(ignore)) {
+			sb.append("ignore ").append(t.id).append('\n');
+		}
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes("UTF-8"));
+			return ByteBuffer.wrap(digest).getLong();
+		} catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+			throw new Error(e); // Every JVM has both
+		}
+	}
+
+	/**
+	 * Get the parser for this grammar, building its automaton the first time.  Grammars
+	 * with the same root, symbols and ignored terminals share a parser; see Parser.forGrammar().
+	 */
+	public Parser getParser() {
+		Parser p = parser;
+		if(p == null) parser = p = Parser.forGrammar(this);
+		return p;
+	}
+
 	/**
 	 * Parse using the given symbol as the "root" symbol.  This symbol should
 	 * match the entire input given by the reader.
-	 * @param symbols TODO
-	 * @param input TODO
 	 * @throws IOException 
 	 * @throws ParseException 
 	 */
 	public Node parse(ParserReader input) throws IOException, ParseException {
-		Automaton automaton = new Automaton().build(this);
-		if(Parser.debug) System.out.println(automaton);
-		return automaton.parse(input);
+		return getParser().parse(input);
+	}
+
+	/**
+	 * Parse using the given symbol as the "root" symbol, returning every possible parse
+	 * of the input as a shared packed parse forest.
+	 */
+	public ParseForest parseForest(ParserReader input) throws IOException, ParseException {
+		return getParser().parseForest(input);
+	}
+
+	/**
+	 * Parse a string as an input, returning every possible parse of it as a forest.
+	 */
+	public ParseForest parseForest(String input, String filename) throws IOException, ParseException {
+		return getParser().parseForest(input, filename);
+	}
+
+	/**
+	 * Parse an edited version of the input a tree was parsed from, reusing what the edits
+	 * didn't touch; see Parser.reparse().
+	 */
+	public Node reparse(Node previous, List<TextEdit> edits) throws IOException, ParseException {
+		return getParser().reparse(previous, edits);
 	}
 
 	/**
 	 * Parse a string as an input, using the given symbol as the expected format of the input.
-	 * @param input TODO
-	 * @param filename TODO
 	 */
 	public Node parse(String input, String filename) throws IOException, ParseException {
-		return parse(new ParserReader(new StringReader(input), filename, input.length()));
+		return getParser().parse(input, filename);
 	}
 
 	/**
 	 * Parse a file as an input, using the given symbol as the expected format of the input.
 	 * 
-	 * This buffers the entire file into memory to allow seeking to and to count the number
-	 * of characters in the file.
-	 * @param input TODO
-	 * @param charsetName TODO
+	 * The file is memory mapped and decoded into memory in one go, to allow seeking and
+	 * to count the number of characters in the file.
 	 */
 	public Node parse(File input, String charsetName) throws IOException, ParseException {
-		Reader in = new InputStreamReader(new FileInputStream(input), charsetName);
-		return parse(input.getPath(), (int) input.length(), in);
+		return getParser().parse(input, charsetName);
 	}
 
 	/**
 	 * Parse from a reader.  The reader is first buffered fully into memory to count characters and to allow
 	 * seeking.  After reading, the provided reader is closed.
 	 * 
-	 * @param filename TODO
 	 * @param maxChars The maximum expected number of characters in the file; used to allocate a buffer to contain
 	 *                 the file.  If the file has more characters than expected, the remaining characters will be
 	 *                 ignored.  The number of bytes in a file may be OK for this as long as the file is exected
 	 *                 to have fewer characters than bytes (i.e. for UTF-8 or any 8-bit encoding).
-	 * @param in TODO
 	 */
 	public Node parse(String filename, int maxChars, Reader in) throws IOException, ParseException {
-		CharBuffer buf = CharBuffer.allocate(maxChars);
-		try {
-			while(in.read(buf) > 0) {
-				// Work done in the conditional here...
-			}
-		} finally {
-			in.close();
-		}
-		buf.flip();
-		return parse(new ParserReader(new CharArrayReader(buf.array()), filename, buf.remaining()));
+		return getParser().parse(filename, maxChars, in);
 	}
 	
 }
@@ -28,13 +28,23 @@ public class KeywordTerminal extends Terminal {
 	}
 	
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored) throws IOException {
+	public Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException {
 		FilePos start = input.getFilePos();
 		if(!input.startsWith(text))
 			return null;
 		return new Token(input.getFileRange(start), this, text, ignored);
 	}
 	
+	@Override
+	public boolean canStartWith(int ch) {
+		return text.isEmpty() || ch == text.charAt(0);
+	}
+	
+	@Override
+	public boolean canMatchEmpty() {
+		return text.isEmpty();
+	}
+	
 	@Override
 	public String toString() {
 		return id+" : '"+text+"';";
@@ -11,33 +11,45 @@ public class Marker extends Terminal {
 	 * This marker matches zero characters, but only at the start of the file.
 	 */
 	public static final Marker START_OF_FILE = new Marker("<start>") {
-		public Node match(ParserReader input, StackHead head, String ignored) throws IOException {
-			if(input.getCurrentOffset() == 0)
+		public Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException {
+			if(input.getCurrentOffset() == input.getStartOffset())
 				return input.markerToken(this);
 			else
 				return null;
 		}
+		public boolean canStartWith(int ch) {
+			return false;
+		}
 	};
 	
 	/**
 	 * This marker matches zero characters, but only at the end of the file.
 	 */
 	public static final Marker END_OF_FILE = new Marker("<end>") {
-		public Node match(ParserReader input, StackHead head, String ignored) throws IOException {
-			if(input.getCurrentOffset() == input.fileSize)
+		public Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException {
+			if(input.atEnd())
 				return input.markerToken(this);
 			else
 				return null;
 		}
+		public boolean canStartWith(int ch) {
+			return ch == -1;
+		}
+		public boolean canMatchEmpty() {
+			return false;
+		}
 	};
 	
 	/**
 	 * This marker is always a successful match of zero characters.
 	 */
 	public static final Marker NIL = new Marker("<nil>") {
-		public Node match(ParserReader input, StackHead head, String ignored) throws IOException {
+		public Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException {
 			return input.markerToken(this);
 		}
+		public boolean canStartWith(int ch) {
+			return false;
+		}
 	};
 
 	public Marker(String name) {
@@ -45,7 +57,7 @@ public class Marker extends Terminal {
 	}
 	
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored) throws IOException {
+	public Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException {
 		return null;
 	}
 }
@@ -5,6 +5,7 @@ import java.util.Collection;
 import java.util.TreeSet;
 
 import felix.parser.glr.Parser.StackHead;
+import felix.parser.glr.Parser.StackLink;
 import felix.parser.glr.automaton.Automaton;
 import felix.parser.glr.automaton.Automaton.BuildQueueItem;
 import felix.parser.glr.automaton.State;
@@ -35,13 +36,14 @@ public class NonTerminal extends Symbol {
 	 * of this non-terminal.
 	 */
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored) {
-		if(head != null && head.node != null && this.equals(head.node.symbol)) {
-			return head.node;
-		} else {
-			
-			return null;
+	public Node match(ParserReader input, StackHead head, CharSequence ignored) {
+		if(head != null) {
+			for(StackLink link : head.links) {
+				if(link.node != null && this.equals(link.node.symbol))
+					return link.node;
+			}
 		}
+		return null;
 	}
 	
 	@Override
@@ -80,6 +82,8 @@ public class NonTerminal extends Symbol {
 	
 	@Override
 	public void collectSymbols(TreeSet<Symbol> set) {
+		if(set.contains(this))
+			return; // Already visited; once refs are resolved a rule can lead back here
 		super.collectSymbols(set);
 		for(Rule r : rules) {
 			r.collectSymbols(set);
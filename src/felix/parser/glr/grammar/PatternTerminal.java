@@ -1,6 +1,7 @@
 package felix.parser.glr.grammar;
 
 import java.io.IOException;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import felix.parser.glr.Parser.StackHead;
@@ -13,6 +14,9 @@ import felix.parser.util.ParserReader;
  */
 public class PatternTerminal extends Terminal {
 	public final Pattern re;
+	
+	// Characters below 256 a match can start with; computed on first use
+	private long[] firstChars;
 
 	public PatternTerminal(String id, Pattern re, Priority priority) {
 		super(id, priority);
@@ -32,10 +36,48 @@ public class PatternTerminal extends Terminal {
 	}
 	
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored) throws IOException {
+	public Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException {
 		return input.checkNextToken(re, this, ignored);
 	}
 	
+	/**
+	 * A match can start with a character if the pattern matches something non-empty
+	 * starting with it, or ran out of input trying to.  Where trying the character by
+	 * itself can't tell (half of a surrogate pair, or canonical equivalence, where
+	 * later characters can change how the first one matches) the answer is yes.
+	 */
+	@Override
+	public boolean canStartWith(int ch) {
+		if(ch < 0 || ch >= 256)
+			return ch >= 0 && check(ch);
+		long[] bits = firstChars;
+		if(bits == null) {
+			bits = new long[4];
+			for(int c=0; c < 256; c++) {
+				if(check(c)) bits[c >> 6] |= 1L << c;
+			}
+			firstChars = bits;
+		}
+		return (bits[ch >> 6] & (1L << ch)) != 0;
+	}
+	
+	private boolean check(int ch) {
+		if((re.flags() & Pattern.CANON_EQ) != 0)
+			return true;
+		if(ch <= Character.MAX_VALUE && Character.isSurrogate((char)ch))
+			return true;
+		final Matcher m = re.matcher(new String(Character.toChars(ch)));
+		return (m.lookingAt() && m.end() > 0) || m.hitEnd();
+	}
+	
+	/**
+	 * Empty matches are never accepted, see ParserReader.checkNextToken()
+	 */
+	@Override
+	public boolean canMatchEmpty() {
+		return false;
+	}
+	
 	@Override
 	public String toString() {
 		return id+" : \""+re.pattern()+"\";";
@@ -1,6 +1,8 @@
 package felix.parser.glr.grammar;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 /**
@@ -9,6 +11,11 @@ import java.util.List;
  * Note that a priority is not transitive - that is, specifying that another
  * priority is lower than this one doesn't mean that all the priorities specified
  * as lower than that one will also be considered lower than this one.
+ * <p>
+ * Each priority keeps its lower priorities in a set for comparing them while the
+ * automaton is built; the parse table numbers the priorities it uses itself, and
+ * works out which of them meet each requirement up front.  The requirements for
+ * each priority are made once and shared.
  * @author dobes
  *
  */
@@ -17,18 +24,27 @@ public class Priority implements Comparable<Priority> {
 	
 	public final String id;
 	public final List<Priority> lower;
+
+	// The lower priorities again, for looking them up
+	private final HashSet<Priority> lowerSet;
+
+	private final Requirement lt = new RequireLessThan();
+	private final Requirement le = new RequireLessThanOrEqualTo();
+	private final Requirement gt = new RequireGreaterThan();
+	private final Requirement ge = new RequireGreaterThanOrEqualTo();
+	private final Requirement eq = new RequireEqualTo();
+
 	public Priority(String id, Priority ... lowerPriorities) {
 		super();
+		if(id == null) throw new NullPointerException();
 		this.id = id;
-		this.lower = Arrays.asList(lowerPriorities);
+		this.lower = Collections.unmodifiableList(Arrays.asList(lowerPriorities.clone()));
+		this.lowerSet = new HashSet<>(lower);
 	}
 	
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((id == null) ? 0 : id.hashCode());
-		return result;
+		return 31 + id.hashCode();
 	}
 
 	@Override
@@ -39,13 +55,7 @@ public class Priority implements Comparable<Priority> {
 			return false;
 		if (getClass() != obj.getClass())
 			return false;
-		Priority other = (Priority) obj;
-		if (id == null) {
-			if (other.id != null)
-				return false;
-		} else if (!id.equals(other.id))
-			return false;
-		return true;
+		return id.equals(((Priority) obj).id);
 	}
 
 	@Override
@@ -54,7 +64,7 @@ public class Priority implements Comparable<Priority> {
 	}
 
 	public boolean greaterThan(Priority o) {
-		return lower.contains(o);
+		return lowerSet.contains(o);
 	}
 	
 	public boolean greaterThanOrEqualTo(Priority o) {
@@ -72,9 +82,9 @@ public class Priority implements Comparable<Priority> {
 	
 	@Override
 	public int compareTo(Priority o) {
-		if(lower.contains(o))
+		if(greaterThan(o))
 			return -1;
-		if(o.lower.contains(this))
+		if(o.greaterThan(this))
 			return 1;
 		if(equals(o))
 			return 0;
@@ -103,6 +113,8 @@ public class Priority implements Comparable<Priority> {
 		}
 		@Override
 		public boolean equals(Object obj) {
+			if(this == obj)
+				return true;
 			if(obj == null || !(obj.getClass().equals(getClass())))
 				return false;
 			Requirement x = (Requirement)obj;
@@ -110,27 +122,27 @@ public class Priority implements Comparable<Priority> {
 		}
 	}
 	
-	public Requirement requireLessThan() { return new RequireLessThan(); }
+	public Requirement requireLessThan() { return lt; }
 	public class RequireLessThan extends Requirement { 
 		public boolean check(Priority o) { return o.lessThan(Priority.this); }
 		public String op() { return "<"; }
 	};
-	public Requirement requireLessThanOrEqualTo() { return new RequireLessThanOrEqualTo(); }
+	public Requirement requireLessThanOrEqualTo() { return le; }
 	public class RequireLessThanOrEqualTo extends Requirement { 
 		public boolean check(Priority o) { return o.lessThanOrEqualTo(Priority.this); } 
 		public String op() { return "<="; }
 	};
-	public Requirement requireGreaterThan() { return new RequireGreaterThan(); }
+	public Requirement requireGreaterThan() { return gt; }
 	public class RequireGreaterThan extends Requirement { 
 		public boolean check(Priority o) { return o.greaterThan(Priority.this); }
 		public String op() { return ">"; }
 	};
-	public Requirement requireGreaterThanOrEqualTo() { return new RequireGreaterThanOrEqualTo(); }
+	public Requirement requireGreaterThanOrEqualTo() { return ge; }
 	public class RequireGreaterThanOrEqualTo extends Requirement { 
 		public boolean check(Priority o) { return o.greaterThanOrEqualTo(Priority.this); } 
 		public String op() { return ">="; }
 	};
-	public Requirement requireEqualTo() { return new RequireEqualTo(); }
+	public Requirement requireEqualTo() { return eq; }
 	public class RequireEqualTo extends Requirement { 
 		public boolean check(Priority o) { return o.equals(Priority.this); } 
 		public String op() { return "="; }
@@ -110,11 +110,8 @@ public class Sequence extends NonTerminal {
 				return super.build(nodes);
 			}
 		} else {
-			Element head = (Element)nodes[0];
-			int newLength = head.children.length + nodes.length - 1;
-			final Node[] newNodes = Arrays.copyOf(head.children, newLength);
-			System.arraycopy(nodes, 1, newNodes, head.children.length, nodes.length-1);
-			return super.build(newNodes);
+			// Keeps any ambiguity in the list so far, including derivations packed into the head later
+			return ((Element)nodes[0]).extend(this, Arrays.copyOfRange(nodes, 1, nodes.length));
 		}
 	}
 	
@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.Set;
 import java.util.TreeSet;
 
+import felix.parser.glr.Parser;
 import felix.parser.glr.Parser.StackHead;
 import felix.parser.glr.automaton.Automaton;
 import felix.parser.glr.automaton.Automaton.BuildQueueItem;
@@ -18,11 +19,13 @@ import felix.parser.util.ParserReader;
 
 public abstract class Symbol implements Comparable<Symbol> {
 	public final String id;
+	private final int hash;
 	
 	public Symbol(String id) {
 		super();
 		if(id == null) throw new NullPointerException();
 		this.id = id;
+		this.hash = 31 + id.hashCode();
 	}
 
 	@Override
@@ -32,29 +35,26 @@ public abstract class Symbol implements Comparable<Symbol> {
 	
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((id == null) ? 0 : id.hashCode());
-		return result;
+		return hash;
 	}
 
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
-		if (obj == null)
+		if (!(obj instanceof Symbol))
 			return false;
-		Symbol other = (Symbol) obj;
-		if (id == null) {
-			if (other.id != null)
-				return false;
-		} else if (!id.equals(other.id))
-			return false;
-		return true;
+		final Symbol other = (Symbol) obj;
+		return hash == other.hash && id.equals(other.id);
 	}
 
+	/**
+	 * Symbols are sorted by id, so that the automaton is built the same way
+	 * whatever order the symbols were created in.
+	 */
 	@Override
 	public int compareTo(Symbol o) {
+		if(this == o) return 0;
 		return id.compareTo(o.id);
 	}
 	
@@ -83,9 +83,9 @@ public abstract class Symbol implements Comparable<Symbol> {
 	 * 
 	 * If the match is unsuccessful, the input position is left as it was when the method was called.  If
 	 * the parse is successful, the input position is moved to the end of the part of the input that matched.
-	 * @param ignored TODO
+	 * @param ignored The ignored text just before the match, usually a view of the input
 	 */
-	public abstract Node match(ParserReader input, StackHead head, String ignored) throws IOException;
+	public abstract Node match(ParserReader input, StackHead head, CharSequence ignored) throws IOException;
 
 	private Symbol withPriorityRequirement(Requirement req) {
 		return new SymbolWithPriorityRequirement(this, req);
@@ -114,6 +114,15 @@ public abstract class Symbol implements Comparable<Symbol> {
 		return equals(symbol);
 	}
 
+	/**
+	 * Whether compatibleWith() looks at more than the symbol, such as the priority.  If
+	 * not, reductions just compare symbol numbers instead of calling it, so override this
+	 * along with compatibleWith().
+	 */
+	public boolean hasPriorityCheck() {
+		return false;
+	}
+
 	public abstract Collection<Rule> calculateRules(Automaton automaton);
 
 	public abstract boolean isNonTerminal();
@@ -137,11 +146,19 @@ public abstract class Symbol implements Comparable<Symbol> {
 	
 	/**
 	 * Parse a string using this symbol as the root symbol.  Useful
-	 * for simple usages and test cases.
+	 * for simple usages and test cases.  The automaton is only built on the
+	 * first call; later calls with the same ignore set reuse it.
 	 */
 	public Node parse(String input, Set<Terminal> ignore) throws IOException, ParseException {
-		final Grammar g = new Grammar(this, ignore);
-		return g.parse(input, "<string>");
+		return getParser(ignore).parse(input, "<string>");
+	}
+
+	/**
+	 * Get the parser for this symbol as the root symbol, with the given terminals ignored.
+	 * This comes from Parser.forGrammar(), so it is shared and kept with the other cached parsers.
+	 */
+	public Parser getParser(Set<Terminal> ignore) {
+		return Parser.forGrammar(new Grammar(this, ignore));
 	}
 
 	public boolean isTerminal() {
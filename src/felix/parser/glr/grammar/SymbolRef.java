@@ -30,7 +30,7 @@ public class SymbolRef extends Symbol {
 	}
 	
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored)
+	public Node match(ParserReader input, StackHead head, CharSequence ignored)
 			throws IOException {
 		Symbol realSym = getRealSym(head.automaton);
 		return realSym.match(input, head, ignored);
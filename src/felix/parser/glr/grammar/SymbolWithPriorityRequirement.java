@@ -42,7 +42,7 @@ public class SymbolWithPriorityRequirement extends Symbol {
 	}
 
 	@Override
-	public Node match(ParserReader input, StackHead head, String ignored)
+	public Node match(ParserReader input, StackHead head, CharSequence ignored)
 			throws IOException {
 		final Node node = symbol.match(input, head, ignored);
 		return node;
@@ -68,6 +68,11 @@ public class SymbolWithPriorityRequirement extends Symbol {
 		//System.out.println("Checking "+other.id+" == "+symbol.id+" && "+priority+" matches "+req+" : "+ok);
 		return ok;
 	}
+
+	@Override
+	public boolean hasPriorityCheck() {
+		return true;
+	}
 	
 	@Override
 	public boolean isNonTerminal() {
@@ -32,7 +32,7 @@ public abstract class Terminal extends Symbol {
 		}
 	}
 	
-	public Token build(FileRange fileRange, String text, String ignored) {
+	public Token build(FileRange fileRange, CharSequence text, CharSequence ignored) {
 		return new Token(fileRange, this, text, ignored);
 	}
 	
@@ -40,6 +40,23 @@ public abstract class Terminal extends Symbol {
 	public void resolveRefs(Automaton automaton) {
 	}
 	
+	/**
+	 * Check whether a match of this terminal could start with the given character, or
+	 * -1 for the end of the input.  This is used to skip actions that can't succeed, so
+	 * when in doubt return true.
+	 */
+	public boolean canStartWith(int ch) {
+		return true;
+	}
+	
+	/**
+	 * Check whether this terminal might match without consuming any input, so that
+	 * whatever follows it could start at the same place.  When in doubt return true.
+	 */
+	public boolean canMatchEmpty() {
+		return true;
+	}
+	
 	@Override
 	public Collection<Rule> calculateRules(Automaton automaton) {
 		return Collections.singleton(new Rule(this.priority, this));
@@ -0,0 +1,339 @@
+package felix.parser.glr.parsetree;
+
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import felix.parser.glr.grammar.Symbol;
+import felix.parser.util.CharSlice;
+import felix.parser.util.FileRange;
+import felix.parser.util.LineIndex;
+import felix.parser.util.ParserReader;
+
+/**
+ * A parse tree packed into a handful of arrays, for keeping lots of trees in memory.
+ * <p>
+ * A tree of Token and Element objects costs several objects per node (the node, its
+ * range, two positions, two strings and a child array).  Here each node is just a
+ * number, and its symbol, offsets, parent and children are looked up in parallel
+ * int arrays.  The text of the tokens is kept once, as one char array covering the
+ * whole input, and line numbers are only worked out when a position is asked for.
+ * <p>
+ * Nodes are numbered breadth first from the root, which is node 0, so the children
+ * of a node are always numbered one after another.  Use the methods taking a node
+ * number to walk the tree without creating anything, or getRoot() for a read-only
+ * Node view of it that can be passed to code expecting an ordinary tree.  toNode()
+ * builds the ordinary tree again.
+ * <p>
+ * Only the first derivation of ambiguous elements is kept; pick a tree from the
+ * ParseForest first if another one is wanted.
+ */
+public class CompactTree {
+	public final String filename;
+
+	// Distinct symbols in the tree; nodes refer to them by their index here
+	private final Symbol[] symbolTable;
+	private final int[] symbols;
+	private final int[] starts;
+	private final int[] ends;
+	private final int[] parents;
+	// Children of node i are numbered firstChild[i] up to firstChild[i]+childCount[i]-1;
+	// tokens have a child count of -1 so they can be told apart from empty elements
+	private final int[] firstChild;
+	private final int[] childCount;
+	// For tokens, how many characters of ignored text come before them
+	private final int[] prefixLengths;
+
+	// The text of the input covered by the tree, indexed by offset
+	private final char[] text;
+	private LineIndex lines;
+
+	/**
+	 * Pack a tree.  Nothing in the tree is kept, so it can be thrown away afterwards.
+	 */
+	public CompactTree(Node root) {
+		super();
+		// Count the nodes and find how far the text goes
+		int size = 0;
+		int textLength = 0;
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while(!stack.isEmpty()) {
+			final Node node = stack.pop();
+			size++;
+			textLength = Math.max(textLength, node.getFileRange().getEnd().offset);
+			if(!(node instanceof Token)) {
+				for(int i=0; i < node.getChildCount(); i++) {
+					stack.push(node.getChild(i));
+				}
+			}
+		}
+
+		this.filename = root.getFileRange().filename;
+		this.symbols = new int[size];
+		this.starts = new int[size];
+		this.ends = new int[size];
+		this.parents = new int[size];
+		this.firstChild = new int[size];
+		this.childCount = new int[size];
+		this.prefixLengths = new int[size];
+		this.text = new char[textLength];
+
+		final IdentityHashMap<Symbol,Integer> symbolIndexes = new IdentityHashMap<>();
+		final ArrayList<Symbol> symbolList = new ArrayList<>();
+		final Node[] queue = new Node[size];
+		queue[0] = root;
+		parents[0] = -1;
+		int added = 1;
+		for(int i=0; i < size; i++) {
+			final Node node = queue[i];
+			queue[i] = null;
+			Integer symbol = symbolIndexes.get(node.symbol);
+			if(symbol == null) {
+				symbol = symbolList.size();
+				symbolIndexes.put(node.symbol, symbol);
+				symbolList.add(node.symbol);
+			}
+			symbols[i] = symbol;
+			final FileRange range = node.getFileRange();
+			starts[i] = range.start.offset;
+			ends[i] = range.getEnd().offset;
+			firstChild[i] = added;
+			if(node instanceof Token) {
+				final Token token = (Token) node;
+				final CharSequence prefix = token.getIgnoredPrefixChars() == null ? "" : token.getIgnoredPrefixChars();
+				final int prefixStart = Math.max(0, starts[i] - prefix.length());
+				copy(prefix.subSequence(prefix.length() - (starts[i] - prefixStart), prefix.length()), prefixStart);
+				copy(token.getTextChars(), starts[i]);
+				prefixLengths[i] = starts[i] - prefixStart;
+				childCount[i] = -1;
+			} else {
+				childCount[i] = node.getChildCount();
+				for(int k=0; k < childCount[i]; k++) {
+					parents[added] = i;
+					queue[added++] = node.getChild(k);
+				}
+			}
+		}
+		this.symbolTable = symbolList.toArray(new Symbol[symbolList.size()]);
+	}
+
+	// Copy token text into the text array without making Strings of it
+	private void copy(CharSequence chars, int offset) {
+		if(chars instanceof CharSlice) {
+			((CharSlice)chars).getChars(text, offset);
+		} else {
+			for(int i=0; i < chars.length(); i++) {
+				text[offset + i] = chars.charAt(i);
+			}
+		}
+	}
+
+	/**
+	 * Number of nodes in the tree.
+	 */
+	public int size() {
+		return symbols.length;
+	}
+
+	public Symbol getSymbol(int node) {
+		return symbolTable[symbols[node]];
+	}
+
+	public int getStartOffset(int node) {
+		return starts[node];
+	}
+
+	public int getEndOffset(int node) {
+		return ends[node];
+	}
+
+	public boolean isToken(int node) {
+		return childCount[node] < 0;
+	}
+
+	/**
+	 * @return The parent node number, or -1 for the root
+	 */
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public int getChildCount(int node) {
+		return Math.max(0, childCount[node]);
+	}
+
+	public int getChild(int node, int position) {
+		if(position < 0 || position >= getChildCount(node))
+			throw new IndexOutOfBoundsException("Node "+node+" has no child "+position);
+		return firstChild[node] + position;
+	}
+
+	/**
+	 * Get the text the node covers, including any ignored text between its tokens.
+	 * The result is a view of the tree's text rather than a copy.
+	 */
+	public CharSequence getText(int node) {
+		return CharBuffer.wrap(text, starts[node], ends[node] - starts[node]);
+	}
+
+	/**
+	 * Get the ignored text just before a token.
+	 */
+	public CharSequence getIgnoredPrefix(int node) {
+		return CharBuffer.wrap(text, starts[node] - prefixLengths[node], prefixLengths[node]);
+	}
+
+	/**
+	 * Get the range of the input a node covers; line and column numbers are looked up
+	 * when they are asked for.
+	 */
+	public FileRange getFileRange(int node) {
+		if(lines == null)
+			lines = new ParserReader(text, text.length, filename).getLineIndex();
+		return new FileRange(filename, lines.getFilePos(starts[node]), lines.getFilePos(ends[node]));
+	}
+
+	/**
+	 * Get a Node view of the root of the tree.
+	 */
+	public View getRoot() {
+		return getNode(0);
+	}
+
+	public View getNode(int node) {
+		if(node < 0 || node >= size())
+			throw new IndexOutOfBoundsException("No node "+node+" in a tree of "+size());
+		return new View(node);
+	}
+
+	/**
+	 * Build an ordinary tree of Tokens and Elements for a node.
+	 */
+	public Node toNode(int node) {
+		// Elements are made with empty child arrays, which are filled in as their children are reached
+		final Node[] result = new Node[1];
+		final ArrayDeque<Node[]> into = new ArrayDeque<>();
+		final ArrayDeque<int[]> pending = new ArrayDeque<>();
+		into.push(result);
+		pending.push(new int[] {node, 0});
+		while(!pending.isEmpty()) {
+			final Node[] target = into.pop();
+			final int[] next = pending.pop();
+			final int n = next[0];
+			if(isToken(n)) {
+				target[next[1]] = new Token(getFileRange(n), getSymbol(n), getText(n).toString(), getIgnoredPrefix(n).toString());
+				continue;
+			}
+			final Node[] children = new Node[getChildCount(n)];
+			target[next[1]] = new Element(getSymbol(n), getFileRange(n), children);
+			for(int i=0; i < children.length; i++) {
+				into.push(children);
+				pending.push(new int[] {firstChild[n] + i, i});
+			}
+		}
+		return result[0];
+	}
+
+	/**
+	 * A read-only node of a CompactTree.  Views are made as the tree is walked and hold
+	 * nothing but their node number, so don't compare them with ==.
+	 */
+	public class View extends Node {
+		public final int index;
+
+		View(int index) {
+			super(CompactTree.this.getSymbol(index));
+			this.index = index;
+		}
+
+		public CompactTree getTree() {
+			return CompactTree.this;
+		}
+
+		/**
+		 * @return The parent, or null for the root
+		 */
+		public View getParent() {
+			return parents[index] < 0 ? null : new View(parents[index]);
+		}
+
+		public boolean isToken() {
+			return CompactTree.this.isToken(index);
+		}
+
+		public CharSequence getText() {
+			return CompactTree.this.getText(index);
+		}
+
+		@Override
+		public FileRange getFileRange() {
+			return CompactTree.this.getFileRange(index);
+		}
+
+		@Override
+		public List<Token> getTokens() {
+			final ArrayList<Token> result = new ArrayList<>();
+			final ArrayDeque<Integer> stack = new ArrayDeque<>();
+			stack.push(index);
+			while(!stack.isEmpty()) {
+				final int node = stack.pop();
+				if(CompactTree.this.isToken(node)) {
+					result.add((Token) toNode(node));
+				} else {
+					for(int i=CompactTree.this.getChildCount(node)-1; i >= 0; i--) {
+						stack.push(firstChild[node] + i);
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public View getChild(int position) {
+			return new View(CompactTree.this.getChild(index, position));
+		}
+
+		@Override
+		public int getChildCount() {
+			return CompactTree.this.getChildCount(index);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(CompactTree.this) + index;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj)
+				return true;
+			if(!(obj instanceof View))
+				return false;
+			final View other = (View) obj;
+			return other.getTree() == getTree() && other.index == index;
+		}
+
+		@Override
+		public String toString() {
+			if(isToken()) {
+				final String str = getText().toString();
+				return (str.equals(symbol.id) || str.isEmpty()) ? symbol.id : symbol.id+"("+str.replace("\n", "\\n").replace("\r", "\\r")+")";
+			}
+			final StringBuffer sb = new StringBuffer();
+			sb.append(symbol.id).append("(");
+			for(int i=0; i < getChildCount(); i++) {
+				if(i > 0) sb.append(", ");
+				sb.append(getChild(i));
+			}
+			return sb.append(")").toString();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CompactTree("+filename+", "+size()+" nodes, "+symbolTable.length+" symbols)";
+	}
+}
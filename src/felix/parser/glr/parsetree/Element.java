@@ -1,7 +1,8 @@
 package felix.parser.glr.parsetree;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 import felix.parser.glr.grammar.Symbol;
@@ -9,7 +10,6 @@ import felix.parser.util.FileRange;
 
 public class Element extends Node {
 	public final Node[] children;
-	LinkedList<Token> tokens;
 	
 	public Element(Symbol symbol, Node ... children) {
 		this(symbol, null, children);
@@ -28,20 +28,183 @@ public class Element extends Node {
 		
 		this.children = children;
 		this.fileRange = fileRange;
-				
-		// TODO Ideally we could just have some kind of flattening / chained list here ...
-		tokens = new LinkedList<>();
+	}
+	
+	FileRange fileRange;
+	private int hash;
+
+	// Hashes of the derivations, so a new one can be checked against them quickly
+	private int[] derivationHashes;
+	
+	// Other derivations of the same symbol over the same input, packed in by the parser
+	ArrayList<Node[]> packed;
+
+	// Elements made from this one by extend(), which get the derivations packed into it later too
+	private ArrayList<Extension> extensions;
+
+	// For an element made by extend() that isn't linked yet, the element it extends and the nodes added
+	private Extension source;
+
+	private static class Extension {
+		final Element element;
+		final Node[] tail;
+		Extension(Element element, Node[] tail) {
+			this.element = element;
+			this.tail = tail;
+		}
+	}
+	
+	/**
+	 * Add another derivation of this element, i.e. another list of children that
+	 * covers the same input.  The children field keeps the first derivation.
+	 */
+	public void pack(Node[] alternative) {
+		if(alternative.length > 0 && !Element.calculateRange(alternative).equals(getFileRange()))
+			throw new IllegalArgumentException("Packed derivation must cover the same input");
+		if(packed == null) packed = new ArrayList<>(1);
+		packed.add(alternative);
+		if(extensions != null) {
+			for(Extension e : extensions) {
+				final Node[] extended = concat(alternative, e.tail);
+				if(!e.element.hasDerivation(extended))
+					e.element.pack(extended);
+			}
+		}
+	}
+
+	/**
+	 * Make an element whose derivations are those of this element with the given nodes
+	 * added on the end, as when a list is flattened rather than nested.  Call link() on
+	 * the new element once it is kept, so derivations packed into this one later are
+	 * added to it as well and no ambiguity is lost.
+	 */
+	public Element extend(Symbol symbol, Node ... tail) {
+		final Element result = new Element(symbol, null, concat(children, tail));
+		for(int i=1; i < getDerivationCount(); i++) {
+			result.pack(concat(getDerivation(i), tail));
+		}
+		result.source = new Extension(this, tail);
+		return result;
+	}
+
+	/**
+	 * If this element was made by extend(), link it to the element it extends, so that
+	 * derivations packed into that one from now on are packed into the target too.  The
+	 * target is this element, or the element it was merged into.  Elements that are
+	 * thrown away are never linked, so the element they extend doesn't hold on to them.
+	 * <p>
+	 * This isn't thread safe; the parser only builds and links nodes on its own thread.
+	 */
+	public void link(Element target) {
+		if(source == null)
+			return;
+		final Element head = source.element;
+		if(head.extensions == null) head.extensions = new ArrayList<>(1);
+		head.extensions.add(new Extension(target, source.tail));
+		source = null;
+	}
+
+	private static Node[] concat(Node[] head, Node[] tail) {
+		final Node[] result = Arrays.copyOf(head, head.length + tail.length);
+		System.arraycopy(tail, 0, result, head.length, tail.length);
+		return result;
+	}
+	
+	/**
+	 * Number of ways the children of this element were derived; more than one when the input was ambiguous here.
+	 * This doesn't count ambiguity further down the tree; see ParseForest for that.
+	 */
+	public int getDerivationCount() {
+		return packed == null ? 1 : packed.size() + 1;
+	}
+	
+	/**
+	 * Get the children for one derivation of this element; derivation zero is the children field.
+	 */
+	public Node[] getDerivation(int index) {
+		return index == 0 ? children : packed.get(index-1);
+	}
+	
+	/**
+	 * Pack in the derivations of another element for the same symbol over the same input,
+	 * skipping any that this element already has.
+	 * 
+	 * @return true if any new derivations were added
+	 */
+	public boolean merge(Element other) {
+		if(!symbol.equals(other.symbol)) throw new IllegalArgumentException("Cannot merge "+other.symbol+" into "+symbol);
+		boolean added = false;
+		for(int i=0; i < other.getDerivationCount(); i++) {
+			final Node[] alternative = other.getDerivation(i);
+			if(!hasDerivation(alternative)) {
+				pack(alternative);
+				added = true;
+			}
+		}
+		return added;
+	}
+	
+	private boolean hasDerivation(Node[] alternative) {
+		final int count = getDerivationCount();
+		final int known = derivationHashes == null ? 0 : derivationHashes.length;
+		if(known < count) {
+			derivationHashes = known == 0 ? new int[count] : Arrays.copyOf(derivationHashes, count);
+			for(int i=known; i < count; i++) {
+				derivationHashes[i] = derivationHash(getDerivation(i));
+			}
+		}
+		final int hash = derivationHash(alternative);
+		for(int i=0; i < count; i++) {
+			if(derivationHashes[i] == hash && sameChildren(getDerivation(i), alternative))
+				return true;
+		}
+		return false;
+	}
+
+	// Hash of the symbols and spans of some children, which equal children always share
+	private static int derivationHash(Node[] children) {
+		int h = 1;
 		for(Node n : children) {
-			tokens.addAll(n.getTokens());
+			final FileRange r = n.getFileRange();
+			h = 31 * (31 * (31 * h + n.symbol.hashCode()) + r.getStartOffset()) + r.getEndOffset();
 		}
-		
+		return h == 0 ? 1 : h;
+	}
+
+	// Compare children, checking the cheap things first; in the parser, equal children are nearly always the same node
+	private static boolean sameChildren(Node[] a, Node[] b) {
+		if(a == b)
+			return true;
+		if(a.length != b.length)
+			return false;
+		for(int i=0; i < a.length; i++) {
+			if(a[i] == b[i])
+				continue;
+			if(!a[i].symbol.equals(b[i].symbol) || a[i].getClass() != b[i].getClass())
+				return false;
+			final FileRange ra = a[i].getFileRange(), rb = b[i].getFileRange();
+			if(ra.getStartOffset() != rb.getStartOffset() || ra.getEndOffset() != rb.getEndOffset())
+				return false;
+		}
+		for(int i=0; i < a.length; i++) {
+			if(a[i] != b[i] && !a[i].equals(b[i]))
+				return false;
+		}
+		return true;
 	}
 	
-	FileRange fileRange;
+	public boolean isAmbiguous() {
+		return packed != null;
+	}
 	
+	/**
+	 * The part of the input used to parse this element.  If the input was edited since,
+	 * this is where the element is in the latest version of the text.
+	 */
 	@Override
 	public FileRange getFileRange() {
 		if(fileRange == null) fileRange = calculateRange(children);
+		else fileRange = fileRange.current();
 		return fileRange;
 	}
 	
@@ -67,12 +230,14 @@ public class Element extends Node {
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = super.hashCode();
-		result = prime * result + Arrays.hashCode(children);
-		result = prime * result
-				+ ((fileRange == null) ? 0 : fileRange.hashCode());
-		return result;
+		// Only depends on things that don't change, so it can be kept rather than walking the subtree again
+		if(hash == 0) {
+			final int prime = 31;
+			int result = super.hashCode();
+			result = prime * result + Arrays.hashCode(children);
+			hash = result == 0 ? 1 : result;
+		}
+		return hash;
 	}
 
 	@Override
@@ -84,14 +249,34 @@ public class Element extends Node {
 		if (getClass() != obj.getClass())
 			return false;
 		Element other = (Element) obj;
-		if (!Arrays.equals(children, other.children))
+		if (hash != 0 && other.hash != 0 && hash != other.hash)
+			return false;
+		if (!sameChildren(children, other.children))
 			return false;
 		return true;
 	}
 
+	/**
+	 * Collect the tokens by walking down the tree.  They aren't kept in the element, since
+	 * that would mean copying every token into each element above it as the tree is built.
+	 */
 	@Override
 	public List<Token> getTokens() {
-		return tokens;
+		final ArrayList<Token> result = new ArrayList<>();
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(this);
+		while(!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if(node instanceof Element) {
+				final Node[] nodes = ((Element)node).children;
+				for(int i=nodes.length-1; i >= 0; i--) {
+					stack.push(nodes[i]);
+				}
+			} else {
+				result.addAll(node.getTokens());
+			}
+		}
+		return result;
 	}
 	
 	@Override
@@ -0,0 +1,187 @@
+package felix.parser.glr.parsetree;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A shared packed parse forest.
+ * <p>
+ * The parser packs alternative derivations into the Element where they diverge (see
+ * Element.pack()), and subtrees common to several derivations are shared rather than
+ * copied.  This wraps the root of such a forest to count, enumerate and select the
+ * complete trees it represents without building all of them.
+ * <p>
+ * Following the children of each Element from the root gives derivation zero.
+ * <p>
+ * Forests can be as deep as the input is long, so they are walked with a stack of
+ * their own rather than by recursion.
+ */
+public class ParseForest implements Iterable<Node> {
+	public final Node root;
+	private final IdentityHashMap<Node,BigInteger> counts = new IdentityHashMap<>();
+
+	public ParseForest(Node root) {
+		super();
+		if(root == null) throw new NullPointerException();
+		this.root = root;
+	}
+
+	/**
+	 * Number of complete trees in the forest.
+	 */
+	public BigInteger count() {
+		return count(root);
+	}
+
+	public boolean isAmbiguous() {
+		return count().compareTo(BigInteger.ONE) > 0;
+	}
+
+	/**
+	 * Number of trees the given node of this forest represents.
+	 */
+	public BigInteger count(Node node) {
+		if(!(node instanceof Element))
+			return BigInteger.ONE;
+		final BigInteger known = counts.get(node);
+		if(known != null)
+			return known;
+		// Count each element after the elements below it
+		final ArrayDeque<Element> stack = new ArrayDeque<>();
+		final IdentityHashMap<Element,Boolean> expanded = new IdentityHashMap<>();
+		stack.push((Element) node);
+		while(!stack.isEmpty()) {
+			final Element element = stack.peek();
+			if(counts.containsKey(element)) {
+				stack.pop();
+				continue;
+			}
+			if(expanded.put(element, Boolean.TRUE) == null) {
+				for(int i=0; i < element.getDerivationCount(); i++) {
+					for(Node child : element.getDerivation(i)) {
+						if(!(child instanceof Element) || counts.containsKey(child))
+							continue;
+						if(expanded.containsKey(child))
+							throw new IllegalStateException("Parse forest has a cycle at "+child);
+						stack.push((Element) child);
+					}
+				}
+				continue;
+			}
+			stack.pop();
+			BigInteger count = BigInteger.ZERO;
+			for(int i=0; i < element.getDerivationCount(); i++) {
+				count = count.add(count(element.getDerivation(i)));
+			}
+			counts.put(element, count);
+		}
+		return counts.get(node);
+	}
+
+	private BigInteger count(Node[] children) {
+		BigInteger count = BigInteger.ONE;
+		for(Node child : children) {
+			count = count.multiply(count(child));
+		}
+		return count;
+	}
+
+	/**
+	 * Build one of the trees in the forest.  Subtrees without any ambiguity are shared
+	 * with the forest rather than copied.
+	 *
+	 * @param index Number of the tree, from zero to count()-1
+	 */
+	public Node get(BigInteger index) {
+		if(index.signum() < 0 || index.compareTo(count()) >= 0)
+			throw new IndexOutOfBoundsException("No tree "+index+" in a forest of "+count());
+		// Each pick fills in one child of a tree made by an earlier pick
+		final Node[] result = new Node[1];
+		final ArrayDeque<Pick> picks = new ArrayDeque<>();
+		picks.push(new Pick(root, index, result, 0));
+		while(!picks.isEmpty()) {
+			final Pick pick = picks.pop();
+			pick.into[pick.slot] = get(pick.node, pick.index, picks);
+		}
+		return result[0];
+	}
+
+	public Node get(long index) {
+		return get(BigInteger.valueOf(index));
+	}
+
+	private static class Pick {
+		final Node node;
+		final BigInteger index;
+		final Node[] into;
+		final int slot;
+		Pick(Node node, BigInteger index, Node[] into, int slot) {
+			this.node = node;
+			this.index = index;
+			this.into = into;
+			this.slot = slot;
+		}
+	}
+
+	/**
+	 * Choose the derivation of a node for an index.  The new element's children are
+	 * left empty, with a pick added for each of them.
+	 */
+	private Node get(Node node, BigInteger index, ArrayDeque<Pick> picks) {
+		if(count(node).equals(BigInteger.ONE))
+			return node;
+		final Element element = (Element) node;
+		for(int i=0; i < element.getDerivationCount(); i++) {
+			final Node[] derivation = element.getDerivation(i);
+			final BigInteger derivationCount = count(derivation);
+			if(index.compareTo(derivationCount) < 0) {
+				// Split the index into one index per child, last child varying fastest
+				final Node[] children = new Node[derivation.length];
+				for(int k=derivation.length-1; k >= 0; k--) {
+					final BigInteger[] qr = index.divideAndRemainder(count(derivation[k]));
+					picks.push(new Pick(derivation[k], qr[1], children, k));
+					index = qr[0];
+				}
+				return new Element(element.symbol, element.getFileRange(), children);
+			}
+			index = index.subtract(derivationCount);
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Enumerate the trees in the forest; each tree is only built when it is reached.
+	 */
+	@Override
+	public Iterator<Node> iterator() {
+		return new Iterator<Node>() {
+			BigInteger next = BigInteger.ZERO;
+
+			@Override
+			public boolean hasNext() {
+				return next.compareTo(count()) < 0;
+			}
+
+			@Override
+			public Node next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				final Node tree = get(next);
+				next = next.add(BigInteger.ONE);
+				return tree;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "ParseForest("+count()+" trees: "+root+")";
+	}
+}
@@ -4,15 +4,22 @@ import java.util.Collections;
 import java.util.List;
 
 import felix.parser.glr.grammar.Symbol;
+import felix.parser.util.CharSlice;
 import felix.parser.util.FilePos;
 import felix.parser.util.FileRange;
 
 public class Token extends Node {
-	private final String text;
-	private final FileRange fileRange;
-	private final String ignoredPrefix;
+	// Usually views of the input; replaced by Strings once those are asked for
+	private CharSequence text;
+	private FileRange fileRange;
+	private CharSequence ignoredPrefix;
 	
-	public Token(FileRange fileRange, Symbol symbol, String text, String ignoredPrefix) {
+	/**
+	 * @param text The text of the token; this can be a view of the input (see ParserReader.getChars()),
+	 *             in which case a String is only made if getText() is called
+	 * @param ignoredPrefix Ignored text just before the token, which can be a view too
+	 */
+	public Token(FileRange fileRange, Symbol symbol, CharSequence text, CharSequence ignoredPrefix) {
 		super(symbol);
 		if(fileRange == null) throw new NullPointerException();
 		if(text == null) throw new NullPointerException();
@@ -22,13 +29,17 @@ public class Token extends Node {
 		this.ignoredPrefix = ignoredPrefix;
 	}
 	
-	public Token(FileRange fileRange, Symbol symbol, String text) {
+	public Token(FileRange fileRange, Symbol symbol, CharSequence text) {
 		this(fileRange, symbol, text, "");
 	}
 
+	/**
+	 * The part of the input used to parse this token.  If the input was edited since,
+	 * this is where the token is in the latest version of the text.
+	 */
 	@Override
 	public FileRange getFileRange() {
-		return fileRange;
+		return fileRange = fileRange.current();
 	}
 	
 	@Override
@@ -38,13 +49,16 @@ public class Token extends Node {
 	}
 
 	
+	/**
+	 * The hash leaves out the position, which moves when the text is edited (see
+	 * getFileRange()), since the hash of the elements holding the token is kept.
+	 * Equal tokens are still at the same place in the current text.
+	 */
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
-		result = prime * result
-				+ ((getFileRange() == null) ? 0 : getFileRange().hashCode());
-		result = prime * result + ((getText() == null) ? 0 : getText().hashCode());
+		result = prime * result + CharSlice.hashCode(text);
 		return result;
 	}
 
@@ -59,7 +73,7 @@ public class Token extends Node {
 		Token other = (Token) obj;
 		if (!getFileRange().equals(other.getFileRange()))
 			return false;
-		if (!getText().equals(other.getText()))
+		if (!CharSlice.contentEquals(text, other.text))
 			return false;
 		return true;
 	}
@@ -74,6 +88,15 @@ public class Token extends Node {
 	}
 
 	public String getText() {
+		if(!(text instanceof String))
+			text = text.toString();
+		return (String) text;
+	}
+
+	/**
+	 * Get the text without turning it into a String, if it isn't one already.
+	 */
+	public CharSequence getTextChars() {
 		return text;
 	}
 
@@ -82,6 +105,15 @@ public class Token extends Node {
 	 * this is whitespace and comments.
 	 */
 	public String getIgnoredPrefix() {
+		if(ignoredPrefix != null && !(ignoredPrefix instanceof String))
+			ignoredPrefix = ignoredPrefix.toString();
+		return (String) ignoredPrefix;
+	}
+
+	/**
+	 * Get the ignored prefix without turning it into a String, if it isn't one already.
+	 */
+	public CharSequence getIgnoredPrefixChars() {
 		return ignoredPrefix;
 	}
 
@@ -23,7 +23,7 @@ public class DypgenGrammarParser extends GrammarParser {
 		}
 
 		@Override
-		public Node match(ParserReader input, StackHead head, String ignored)
+		public Node match(ParserReader input, StackHead head, CharSequence ignored)
 				throws IOException {
 			FilePos start = input.getFilePos();
 			int startCh = input.read();
@@ -0,0 +1,79 @@
+package felix.parser.util;
+
+/**
+ * Part of a char array seen as a CharSequence, so text can be passed around without
+ * copying it.  The array must not be changed while the slice is in use.
+ * <p>
+ * toString() makes a new String each time; keep it if it's needed more than once.
+ */
+public final class CharSlice implements CharSequence {
+	private final char[] chars;
+	private final int offset;
+	private final int length;
+
+	public CharSlice(char[] chars, int offset, int length) {
+		super();
+		if(offset < 0 || length < 0 || offset + length > chars.length)
+			throw new IndexOutOfBoundsException("Can't take "+length+" chars from "+offset+" of "+chars.length);
+		this.chars = chars;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		if(index < 0 || index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+		return chars[offset + index];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		if(start < 0 || end > length || start > end) throw new IndexOutOfBoundsException(start+" to "+end);
+		return new CharSlice(chars, offset + start, end - start);
+	}
+
+	/**
+	 * Copy the characters into an array.
+	 */
+	public void getChars(char[] dest, int destOffset) {
+		System.arraycopy(chars, offset, dest, destOffset, length);
+	}
+
+	@Override
+	public String toString() {
+		return new String(chars, offset, length);
+	}
+
+	/**
+	 * Compare the characters of two sequences, whatever kind they are.
+	 */
+	public static boolean contentEquals(CharSequence a, CharSequence b) {
+		if(a == b)
+			return true;
+		if(a == null || b == null || a.length() != b.length())
+			return false;
+		for(int i=0; i < a.length(); i++) {
+			if(a.charAt(i) != b.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hash the characters of a sequence the same way String.hashCode() does.
+	 */
+	public static int hashCode(CharSequence s) {
+		if(s instanceof String)
+			return s.hashCode();
+		int h = 0;
+		for(int i=0; i < s.length(); i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h;
+	}
+}
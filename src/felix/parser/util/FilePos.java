@@ -3,16 +3,71 @@ package felix.parser.util;
 public class FilePos {
 	/** Absolute file position in characters; this is the count of characters coming BEFORE this position */
 	public final int offset;
-	/** Line number in the file.  This is the count of line feeds coming before this line, plus 1 for this line (the first line is 1) */
-	public final int line;
-	/** Column number in the line.  This is the count of characters since the last line feed or the start of the file, plus one (this first column is 1) */
-	public final int col;
+	/** Line number in the file, or 0 if it hasn't been looked up in the index yet */
+	private int line;
+	/** Column number in the line, or 0 if it hasn't been looked up in the index yet */
+	private int col;
+	/** Where to look up the line and column; null if they were given up front */
+	private final LineIndex lines;
 	
 	public FilePos(int charsRead, int line, int col) {
 		super();
 		this.offset = charsRead;
 		this.line = line;
 		this.col = col;
+		this.lines = null;
+	}
+	
+	/**
+	 * Create a FilePos that works out its line and column from the index the first
+	 * time they're asked for.
+	 */
+	public FilePos(int charsRead, LineIndex lines) {
+		super();
+		this.offset = charsRead;
+		this.lines = lines;
+	}
+	
+	/**
+	 * Line number in the file.  This is the count of line feeds coming before this line, plus 1 for this line (the first line is 1)
+	 */
+	public int getLine() {
+		if(line == 0) {
+			if(lines.isOutdated())
+				return current().getLine();
+			line = lines.getLine(offset);
+		}
+		return line;
+	}
+	
+	/**
+	 * Column number in the line.  This is the count of characters since the last line feed or the start of the file, plus one (this first column is 1)
+	 */
+	public int getCol() {
+		if(col == 0) {
+			if(lines.isOutdated())
+				return current().getCol();
+			col = lines.getCol(offset);
+		}
+		return col;
+	}
+	
+	/**
+	 * Get this position in the latest version of the text, if the text was edited
+	 * since the position was found (see ParserReader.edit()).  Otherwise, or if the
+	 * position didn't come from a reader, this is returned.
+	 */
+	public FilePos current() {
+		if(lines == null || !lines.isOutdated())
+			return this;
+		return new FilePos(lines.map(offset), lines.latest());
+	}
+	
+	/**
+	 * Get the index this position was found with, or null if it was given its line and column.
+	 */
+	LineIndex getLineIndex() {
+		return lines;
 	}
 	
 	/**
@@ -47,12 +102,12 @@ public class FilePos {
 	
 	@Override
 	public String toString() {
-		return "line "+line+" col "+col+ " offset "+offset;
+		return "line "+getLine()+" col "+getCol()+ " offset "+offset;
 	}
 	public Object toString(FilePos start) {
-		if(start.line == this.line)
-			return "col "+col+" offset "+offset;
+		if(start.getLine() == this.getLine())
+			return "col "+getCol()+" offset "+offset;
 		else
-			return "line "+line+" col "+col+ " offset "+offset;
+			return "line "+getLine()+" col "+getCol()+ " offset "+offset;
 	}
 }
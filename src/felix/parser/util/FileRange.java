@@ -73,6 +73,18 @@ public class FileRange {
 		return end.offset;
 	}
 	
+	/**
+	 * Get this range in the latest version of the text, if it was edited since the range
+	 * was found; otherwise this is returned.
+	 * 
+	 * @see FilePos#current()
+	 */
+	public FileRange current() {
+		final FilePos newStart = start.current();
+		final FilePos newEnd = end.current();
+		return newStart == start && newEnd == end ? this : new FileRange(filename, newStart, newEnd);
+	}
+	
 	/**
 	 * Number of characters between the start and end of the range, including newlines.
 	 */
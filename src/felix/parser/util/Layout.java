@@ -0,0 +1,51 @@
+package felix.parser.util;
+
+import java.io.IOException;
+
+/**
+ * A stretch of ignored input (whitespace and comments) found by ParserReader.skipIgnored().
+ * <p>
+ * Most of the time the text itself is never looked at, so it's only taken from the
+ * input the first time getChars() or getText() is called.
+ */
+public class Layout {
+	public final FilePos start;
+	public final FilePos end;
+	private final ParserReader reader;
+	private CharSequence text;
+
+	public Layout(ParserReader reader, FilePos start, FilePos end) {
+		super();
+		this.reader = reader;
+		this.start = start;
+		this.end = end;
+	}
+
+	public int length() {
+		return end.offset - start.offset;
+	}
+
+	/**
+	 * Get the ignored text.  This doesn't move the reader.
+	 */
+	public String getText() throws IOException {
+		final CharSequence chars = getChars();
+		if(!(chars instanceof String))
+			text = chars.toString();
+		return (String) text;
+	}
+
+	/**
+	 * Get the ignored text as a view of the input, without copying it.
+	 */
+	public CharSequence getChars() throws IOException {
+		if(text == null)
+			text = length() == 0 ? "" : reader.getChars(start.offset, end.offset);
+		return text;
+	}
+
+	@Override
+	public String toString() {
+		return "Layout ["+start+" - "+end+"]";
+	}
+}
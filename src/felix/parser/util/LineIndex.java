@@ -0,0 +1,132 @@
+package felix.parser.util;
+
+import java.util.Arrays;
+
+/**
+ * The offsets where each line of a file starts, so that line and column numbers can
+ * be worked out from an offset only when someone asks for them.
+ * <p>
+ * The index is built lazily: it only scans as far into the file as the furthest
+ * offset looked up so far.  When streaming, the reader has the index scan input
+ * before dropping it from memory.
+ * <p>
+ * Each index belongs to one version of a text.  When the text is edited (see
+ * ParserReader.edit()) the index is linked to the one for the new version, so
+ * positions found in the old version can be mapped to where they are now.  The first
+ * time that's done after more edits, the link is moved on to the latest version with
+ * the edits in between combined, so the chain of versions doesn't keep growing and
+ * the ones in between can be let go of.
+ */
+public class LineIndex {
+	// Null once a newer version of the text has replaced this one
+	ParserReader reader;
+
+	// A later version of the text and where offsets are in it, if there is one
+	private volatile Newer newer;
+
+	private static class Newer {
+		final LineIndex index;
+		final OffsetMap offsets;
+		Newer(LineIndex index, OffsetMap offsets) {
+			this.index = index;
+			this.offsets = offsets;
+		}
+	}
+
+	// starts[i] is the offset of the first character of line i+1
+	private int[] starts = new int[16];
+	private int lineCount = 1;
+	// Characters before this offset have been checked for line feeds
+	private int scanned = 0;
+
+	public LineIndex(ParserReader reader) {
+		super();
+		this.reader = reader;
+	}
+
+	/**
+	 * Get the line number of the given offset.  The first line is 1.
+	 */
+	public synchronized int getLine(int offset) {
+		if(offset > scanned)
+			scanTo(offset);
+		final int i = Arrays.binarySearch(starts, 0, lineCount, offset);
+		return i >= 0 ? i + 1 : -i - 1;
+	}
+
+	/**
+	 * Get the column number of the given offset.  The first column is 1.
+	 */
+	public synchronized int getCol(int offset) {
+		return offset - starts[getLine(offset) - 1] + 1;
+	}
+
+	/**
+	 * Record that the text was edited to make a new version, with the given index.
+	 * The old text is let go of; positions in it map to the new version from now on.
+	 */
+	synchronized void replaceWith(LineIndex newer, TextEdit[] edits) {
+		if(this.newer != null) throw new IllegalStateException("This version of the text was already edited");
+		this.newer = new Newer(newer, OffsetMap.of(edits));
+		this.reader = null;
+	}
+
+	/**
+	 * Check whether the text was edited after this version of it.
+	 */
+	public boolean isOutdated() {
+		return newer != null;
+	}
+
+	/**
+	 * Get the index for the latest version of the text.
+	 */
+	public LineIndex latest() {
+		final Newer n = skipToLatest();
+		return n == null ? this : n.index;
+	}
+
+	/**
+	 * Find where an offset in this version of the text is in the latest version.
+	 */
+	public int map(int offset) {
+		final Newer n = skipToLatest();
+		return n == null ? offset : n.offsets.map(offset);
+	}
+
+	// Link this version straight to the latest one, combining the maps of the versions in between
+	private Newer skipToLatest() {
+		Newer n = newer;
+		if(n == null || n.index.newer == null)
+			return n;
+		OffsetMap offsets = n.offsets;
+		LineIndex latest = n.index;
+		for(Newer next = latest.newer; next != null; next = latest.newer) {
+			offsets = offsets.then(next.offsets);
+			latest = next.index;
+		}
+		newer = n = new Newer(latest, offsets);
+		return n;
+	}
+
+	/**
+	 * Get a position for the given offset; its line and column are looked up when needed.
+	 */
+	public FilePos getFilePos(int offset) {
+		return new FilePos(offset, this);
+	}
+
+	synchronized void scanTo(int offset) {
+		final char[] chars = reader.chars;
+		final int base = reader.base;
+		final int end = Math.min(offset, reader.end);
+		for(int i=scanned; i < end; i++) {
+			if(chars[i - base] == '\n') {
+				if(lineCount == starts.length)
+					starts = Arrays.copyOf(starts, lineCount * 2);
+				starts[lineCount++] = i + 1;
+			}
+		}
+		scanned = Math.max(scanned, end);
+	}
+}
@@ -0,0 +1,127 @@
+package felix.parser.util;
+
+import java.util.Arrays;
+
+/**
+ * Where the offsets of one version of a text are in a later version, after some edits.
+ * <p>
+ * The old text is split into stretches, each of which is either moved by some amount
+ * or, where it was removed, sent to a single offset.  So an offset is mapped with one
+ * binary search however many edits there were, and the maps for two rounds of edits
+ * can be combined into one (see then()).
+ */
+class OffsetMap {
+	// Stretch i covers the old offsets from starts[i] up to starts[i+1], and the last one the rest
+	private final int[] starts;
+	// How far the offsets in each stretch move, or for a fixed stretch, the offset they all go to
+	private final int[] values;
+	private final boolean[] fixed;
+
+	private OffsetMap(int[] starts, int[] values, boolean[] fixed) {
+		super();
+		this.starts = starts;
+		this.values = values;
+		this.fixed = fixed;
+	}
+
+	/**
+	 * Make the map for some edits, each relative to the text after the ones before it.
+	 * Offsets are mapped the same way as by TextEdit.map().
+	 */
+	static OffsetMap of(TextEdit ... edits) {
+		OffsetMap result = new Builder().add(0, 0, false).build();
+		for(TextEdit edit : edits) {
+			result = result.then(of(edit));
+		}
+		return result;
+	}
+
+	private static OffsetMap of(TextEdit edit) {
+		final Builder b = new Builder().add(0, 0, false);
+		if(edit.removedLength == 0) {
+			b.add(edit.offset, edit.delta(), false);
+		} else {
+			// The start of the removed text stays put, the rest of it goes to the end of the inserted text
+			b.add(edit.offset + 1, edit.offset + edit.insertedText.length(), true);
+			b.add(edit.offset + edit.removedLength, edit.delta(), false);
+		}
+		return b.build();
+	}
+
+	/**
+	 * Find where an offset in the old text is in the new one.
+	 */
+	int map(int offset) {
+		final int i = stretchAt(offset);
+		return fixed[i] ? values[i] : offset + values[i];
+	}
+
+	private int stretchAt(int offset) {
+		final int i = Arrays.binarySearch(starts, offset);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	/**
+	 * Combine this map with one for the edits made after it.
+	 */
+	OffsetMap then(OffsetMap next) {
+		final Builder b = new Builder();
+		for(int i=0; i < starts.length; i++) {
+			if(fixed[i]) {
+				b.add(starts[i], next.map(values[i]), true);
+				continue;
+			}
+			// Offsets in this stretch move together until they reach the next map's next stretch
+			final long end = i+1 < starts.length ? starts[i+1] : Long.MAX_VALUE;
+			final int shift = values[i];
+			int k = next.stretchAt(starts[i] + shift);
+			long at = starts[i];
+			while(at < end) {
+				b.add((int) at, next.fixed[k] ? next.values[k] : shift + next.values[k], next.fixed[k]);
+				if(++k >= next.starts.length)
+					break;
+				at = (long) next.starts[k] - shift;
+			}
+		}
+		return b.build();
+	}
+
+	/**
+	 * Number of stretches, which grows with the number of edits.
+	 */
+	int size() {
+		return starts.length;
+	}
+
+	/**
+	 * Collects stretches in order of their start, leaving out empty ones and joining
+	 * neighbours that map the same way.
+	 */
+	private static class Builder {
+		int[] starts = new int[4];
+		int[] values = new int[4];
+		boolean[] fixed = new boolean[4];
+		int count;
+
+		Builder add(int start, int value, boolean fixed) {
+			if(count > 0 && starts[count-1] == start)
+				count--; // The last stretch was empty
+			if(count > 0 && this.fixed[count-1] == fixed && values[count-1] == value)
+				return this;
+			if(count == starts.length) {
+				starts = Arrays.copyOf(starts, count * 2);
+				values = Arrays.copyOf(values, count * 2);
+				this.fixed = Arrays.copyOf(this.fixed, count * 2);
+			}
+			starts[count] = start;
+			values[count] = value;
+			this.fixed[count] = fixed;
+			count++;
+			return this;
+		}
+
+		OffsetMap build() {
+			return new OffsetMap(Arrays.copyOf(starts, count), Arrays.copyOf(values, count), Arrays.copyOf(fixed, count));
+		}
+	}
+}
@@ -1,10 +1,20 @@
 package felix.parser.util;
 
-import java.io.BufferedReader;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -16,215 +26,149 @@ import felix.parser.glr.parsetree.Token;
 
 /**
  * A reader that keeps track of the file line and column information.
- * 
+ * <p>
+ * The input is held in a char array, so seeking anywhere is cheap and
+ * the text can be matched against without copying it.  Normally that's the whole
+ * input, but see streaming() for reading input that won't fit in memory.
  */
 public class ParserReader extends Reader {
 
-	static class Pos {
-		int line=1;
-		int col=1;
-		int offset=0;
-		
-		public Pos() {
-		}
-		public Pos(Pos other) {
-			assign(other);
-		}
-		public void assign(Pos other) {
-			this.line = other.line;
-			this.col = other.col;
-			this.offset = other.offset;
-		}
-		public void assign(FilePos filePos) {
-			this.line = filePos.line;
-			this.col = filePos.col;
-			this.offset = filePos.offset;
-		}
-		
-		
-		private void accumulate(int ch) {
-			if(ch == -1)
-				return;
-			
-			if(ch == '\n') {
-				line++;
-				col = 1;
-			} else {
-				col++;
-			}
-			offset++;
-		}
-		public FilePos toFilePos() {
-			return new FilePos(offset, line, col);
-		}
-	}
-	
-	final Reader delegate;
+	/** How far ahead to keep in memory when streaming, unless told otherwise */
+	public static final int DEFAULT_LOOKAHEAD = 64 * 1024;
+
+	// The input from offset base up to offset end, starting at chars[0]
+	char[] chars;
+	int base;
+	int end;
+	// Where the rest of the input comes from when streaming; null once it's all been read
+	Reader source;
+	// How far past the current position to keep in memory when streaming, or 0 if the whole input is in memory
+	final int lookahead;
+	// Where the input starts; only more than 0 when reading a region()
+	final int start;
 	final String filename;
 	
-	final Pos current = new Pos();
-	final Pos mark = new Pos();
-	public final int fileSize; // In chars
+	final LineIndex lines;
+	
+	// Current and marked offsets; line and column are only worked out when asked for
+	int pos;
+	int markPos;
+	public final int fileSize; // In chars; -1 when streaming, see knownSize()
+	// Length of the input once it's known, which when streaming is once the end has been read
+	private int size;
+
+	// The last position returned by getFilePos(), since it's often asked for repeatedly
+	FilePos lastFilePos;
+
 	
 	public int read(CharBuffer target) throws IOException {
-		int offset = target.position();
-		int charsRead = delegate.read(target);
-		for(int i=0; i < charsRead; i++) {
-			accumulate(target.get(offset+i));
-		}
-		return charsRead;
+		final int len = Math.min(target.remaining(), remaining());
+		if(len == 0)
+			return target.remaining() == 0 ? 0 : -1;
+		target.put(chars, pos - base, len);
+		advance(len);
+		return len;
 	}
 
 	public int read() throws IOException {
-		int ch = delegate.read();
-		accumulate(ch);
-		return ch;
+		if(pos >= end) {
+			fill(ahead(pos));
+			if(pos >= end)
+				return -1;
+		}
+		return chars[pos++ - base];
 	}
 
-	private void accumulate(int ch) {
-		current.accumulate(ch);
+	public int read(char[] cbuf) throws IOException {
+		return read(cbuf, 0, cbuf.length);
 	}
 
-	public int read(char[] cbuf) throws IOException {
-		int len = delegate.read(cbuf);
-		for(int i=0; i < len; i++) {
-			accumulate(cbuf[i]);
-		}
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		len = Math.min(len, remaining());
+		if(len <= 0)
+			return len < 0 || remaining() == 0 ? -1 : 0;
+		System.arraycopy(chars, pos - base, cbuf, off, len);
+		advance(len);
 		return len;
 	}
 
-	public int read(char[] cbuf, int off, int len) throws IOException {
-		int lenRead = delegate.read(cbuf, off, len);
-		for(int i=0; i < lenRead; i++) {
-			accumulate(cbuf[off+i]);
+	// Move forward over the given number of characters
+	private void advance(int n) {
+		pos += n;
+	}
+
+	// The offset the given number of characters should be read up to, so a terminal can look ahead from it
+	private int ahead(int offset) {
+		return offset > Integer.MAX_VALUE - lookahead ? Integer.MAX_VALUE : offset + lookahead;
+	}
+
+	// Make sure the input up to the given offset is in memory, if there is that much of it
+	private void fill(int upTo) throws IOException {
+		while(end < upTo && source != null) {
+			final int used = end - base;
+			if(used == chars.length)
+				chars = Arrays.copyOf(chars, Math.max(16, chars.length * 2));
+			final int n = source.read(chars, used, chars.length - used);
+			if(n < 0) {
+				source = null;
+				size = end;
+			} else {
+				end += n;
+			}
 		}
-		return lenRead;
 	}
 
 	public long skip(long n) throws IOException {
-		// We need to keep our line number accurate
-		for(long skipped=0; skipped < n; skipped++) {
-			if(read() == -1)
-				return skipped;
-		}
-		return n;
+		final int len = (int) Math.min(n, remaining());
+		advance(len);
+		return len;
 	}
 
 	public boolean ready() throws IOException {
-		return delegate.ready();
+		return true;
 	}
 
 	public boolean markSupported() {
 		return true;
 	}
 
+	/**
+	 * Remember the current position so reset() can return to it.  The input is kept
+	 * in memory from the mark on, so the limit doesn't matter.
+	 */
 	public void mark(int readAheadLimit) throws IOException {
-		delegate.mark(readAheadLimit);
-		mark.assign(current);
+		markPos = pos;
 	}
 
 	/**
 	 * Reset to the last mark. 
 	 */
 	public void reset() throws IOException {
-		delegate.reset();
-		current.assign(mark);
+		pos = markPos;
 	}
 
 	/**
 	 * Reset to a given absolute offset in characters.
-	 * <p>
-	 * Note that you cannot seek to before the mark, so call mark() only if 
-	 * you know you will not seek before that mark.
-	 * <p>
-	 * However, this will be faster if you do call mark() periodically,
-	 * since it will seek back to the last mark and then scan characters
-	 * to recalculate the line number at the target position.
 	 * 
-	 * @throws IndexOutOfBoundsException If the offset provided is before the last mark or beyond the end of the file
+	 * @throws IndexOutOfBoundsException If the offset provided is before the start (or the part
+	 *                                   of the input that was released) or beyond the end of the file
 	 */
 	public void seek(int offset) throws IOException {
-		if(offset > fileSize) throw new IndexOutOfBoundsException("Past EOF");
-		
-		if(offset == current.offset) {
-			// Do nothing, we're already there
-		} else if(offset > current.offset) {
-			// Scan ahead
-			skip(offset-current.offset);
-		} else if(offset == mark.offset) {
-			// Jump back to the mark
-			reset();
-		} else if(offset > mark.offset) {
-			// Save some line/column calculations if we're seeking back within the current line
-			int charsBack = current.offset - offset;
-			boolean sameLineAsCurrent = charsBack < current.col;
-			if(sameLineAsCurrent) {
-				// Reposition the reader on the desired character
-				delegate.reset();
-				delegate.skip(offset-mark.offset);
-				
-				// Just directly calculate the column number
-				current.col -= charsBack;
-				current.offset = offset;
-			} else {
-				// Jump back to the mark, then scan ahead to the given offset while recomputing the file offset
-				// This is slower than the above
-				reset();
-				skip(offset - mark.offset);
-			}
-		} else {
-			throw new IndexOutOfBoundsException("Cannot scan back past the last mark.");
-		}
-	}
-	
-	/**
-	 * Read the file position from the parameter and seek to that position, if possible.
-	 * <p>
-	 * Note that this will assume that the line and column information provided are
-	 * correct for the given offset.
-	 * 
-	 * @see #seek(int)
-	 */
-	public void seek(Pos offset) throws IOException {
-		if(offset.offset == current.offset) {
-			// Do nothing, we're already there
-		} else if(offset.offset == mark.offset) {
-			// Jump back to the mark
-			reset();
-		} else if(offset.offset > current.offset){
-			skip(offset.offset - current.offset);
-		} else if(offset.offset > mark.offset){
-			delegate.reset();
-			delegate.skip(offset.offset-mark.offset);
-			current.assign(offset);
-		} else {
-			throw new IndexOutOfBoundsException("Cannot scan back past the last mark.");
-		}
+		if(offset < base) throw new IndexOutOfBoundsException(offset < 0 ? "Before the start of the file" : "Input before offset "+base+" was released");
+		if(offset < start) throw new IndexOutOfBoundsException("Before the start of the region");
+		if(offset > end) fill(offset);
+		if(offset > end) throw new IndexOutOfBoundsException("Past EOF");
+		pos = offset;
 	}
 	
 	/**
-	 * Read the file position from the parameter and seek to that position, if possible.
-	 * <p>
-	 * Note that this will assume that the line and column information provided are
-	 * correct for the given offset.  To seek to just an offset, call seek(int).
+	 * Seek to the given file position.  Only the offset matters; line and column
+	 * numbers are always worked out from the input.
 	 * 
 	 * @see #seek(int)
 	 */
 	public void seek(FilePos filePos) throws IOException {
-		if(filePos.offset == current.offset) {
-			// Do nothing, we're already there
-		} else if(filePos.offset == mark.offset) {
-			// Jump back to the mark
-			reset();
-		} else if(filePos.offset > current.offset) {
-			skip(filePos.offset - current.offset);
-		} else if(filePos.offset > mark.offset){
-			delegate.reset();
-			delegate.skip(filePos.offset-mark.offset);
-			current.assign(filePos);
-		} else {
-			throw new IndexOutOfBoundsException("Cannot scan back past the last mark.");
-		}
+		seek(filePos.offset);
 	}
 	
 	/**
@@ -245,52 +189,83 @@ public class ParserReader extends Reader {
 	 * Get the current offset into the source, in characters.  This starts at 0.
 	 */
 	public int getCurrentOffset() {
-		return current.offset;
+		return pos;
 	}
 
 	/**
 	 * Get the current line number in the source.  This starts at 1.
 	 */
 	public int getCurrentLineNumber() {
-		return current.line;
+		return lines.getLine(pos);
 	}
 
 	/**
 	 * Get the current column number in the source.  This starts at 1.
 	 */
 	public int getCurrentColumnNumber() {
-		return current.col;
+		return lines.getCol(pos);
 	}
 	
 	public void close() throws IOException {
-		delegate.close();
 	}
 
-	public int remaining() {
-		return fileSize - current.offset;
+	/**
+	 * Get the number of characters after the current position.  When streaming, this only
+	 * counts what's in memory, which is at least the lookahead unless the input ends first.
+	 */
+	public int remaining() throws IOException {
+		if(end - pos < lookahead)
+			fill(ahead(pos));
+		return end - pos;
+	}
+	
+	/**
+	 * Get the length of the input in chars, or -1 while it isn't known because the end
+	 * of a stream hasn't been read yet.
+	 */
+	public int knownSize() {
+		return size;
+	}
+
+	/**
+	 * Check whether the current position is at the end of the input.  When streaming,
+	 * this reads ahead as far as needed to find out.
+	 */
+	public boolean atEnd() throws IOException {
+		if(pos >= end)
+			fill(ahead(pos));
+		return pos >= end;
 	}
 	
 	/**
-	 * Create a CharSequence wrapping this reader at its current position.
-	 * 
-	 * Don't use the Reader and the CharSequence in parallel.  Note that
-	 * the CharSequence reads ahead and may advance the reader position arbitrarily;
-	 * use mark() and reset() to restore the file position after using 
-	 * this feature.
+	 * Get the rest of the input from the current position as a CharSequence.
+	 * <p>
+	 * This is a view of the input, so it doesn't copy anything and using it doesn't
+	 * move the reader.
 	 */
-	public CharSequence toCharSequence() {
-		return new ReaderCharSequence(this, remaining(), 1024);
+	public CharSequence toCharSequence() throws IOException {
+		return charsFrom(pos);
 	}
 	
+	/**
+	 * Get the text from the given offset to the end of the input as a CharSequence.
+	 * When streaming, it only goes as far as the lookahead past the offset.
+	 * <p>
+	 * This is a read-only view of the input, so it can be used while the reader is
+	 * used for other things.
+	 */
+	public CharSequence charsFrom(final int offset) throws IOException {
+		if(offset < base) throw new IndexOutOfBoundsException("Input before offset "+base+" was released");
+		fill(ahead(offset));
+		return CharBuffer.wrap(chars, offset - base, end - offset).slice().asReadOnlyBuffer();
+	}
+
 	/**
 	 * Attempt to match the given regular expression against the next
 	 * available characters in the stream.
 	 *
-	 * Returns a Matcher indicating the result of the match.
-	 * 
-	 * This method will advance the file pointer arbitrarily; be sure to
-	 * use reset() when you are done with the matcher to go to your
-	 * desired file position.
+	 * Returns a Matcher indicating the result of the match; its offsets are
+	 * relative to the current position, which this doesn't change.
 	 */
 	public Matcher matcher(Pattern p) throws IOException {
 		return p.matcher(toCharSequence());
@@ -308,13 +283,13 @@ public class ParserReader extends Reader {
 	 * 
 	 * @param ignoredTokens Tokens that were ignored as comments/whitespace immediately before this one 
 	 */
-	public Token checkNextToken(Pattern re, PatternTerminal term, String ignored) throws IOException {
+	public Token checkNextToken(Pattern re, PatternTerminal term, CharSequence ignored) throws IOException {
 		FilePos start = getFilePos();
 		Matcher m = matcher(re);
 		if(m.lookingAt() && m.end() > m.start()) {
 			// Position just at the end of the token that was matched
 			seek(start.offset + m.end());
-			return new Token(getFileRange(start), term, m.group(), ignored);
+			return new Token(getFileRange(start), term, getChars(start.offset, pos), ignored);
 		}
 		seek(start);
 		return null;
@@ -324,29 +299,205 @@ public class ParserReader extends Reader {
 	 * Get the current file position as a FilePos instance.
 	 */
 	public FilePos getFilePos() {
-		return current.toFilePos();
+		FilePos result = lastFilePos;
+		if(result == null || result.offset != pos)
+			lastFilePos = result = new FilePos(pos, lines);
+		return result;
+	}
+
+	/**
+	 * Create a new parser reader over the given characters, which are used directly
+	 * rather than copied; don't change them while parsing, or afterwards while the
+	 * tokens are in use, since the text of the tokens is a view of them.
+	 * 
+	 * @param chars Characters of the file
+	 * @param length Number of characters at the start of the array that are part of the file
+	 * @param filename Name of the file to report in the file location information attached to tokens
+	 */
+	public ParserReader(char[] chars, int length, String filename) {
+		this(chars, length, filename, null, 0);
+		if(length > chars.length) throw new IndexOutOfBoundsException("Length "+length+" is more than the "+chars.length+" characters given");
+	}
+
+	private ParserReader(char[] chars, int length, String filename, Reader source, int lookahead) {
+		super();
+		this.chars = chars;
+		this.end = length;
+		this.filename = filename;
+		this.source = source;
+		this.lookahead = lookahead;
+		this.start = 0;
+		this.fileSize = this.size = source == null ? length : -1;
+		this.lines = new LineIndex(this);
+	}
+
+	private ParserReader(ParserReader whole, int start, int end) {
+		super();
+		this.chars = whole.chars;
+		this.end = end;
+		this.filename = whole.filename;
+		this.lookahead = 0;
+		this.start = start;
+		this.pos = this.markPos = start;
+		this.fileSize = this.size = end;
+		this.lines = whole.lines;
+	}
+
+	/**
+	 * Create a reader for part of this reader's input, which reads it as if it were
+	 * the whole file: it starts and ends at the given offsets.  Positions are the same as
+	 * in this reader, though.
+	 */
+	public ParserReader region(int start, int end) {
+		if(lookahead > 0) throw new IllegalStateException("Can't read a region of a stream");
+		if(start < 0 || end > size || start > end) throw new IndexOutOfBoundsException("Bad region from "+start+" to "+end);
+		return new ParserReader(this, start, end);
+	}
+
+	/**
+	 * Apply some edits to the input, returning a reader for the new text.
+	 * <p>
+	 * From then on, positions found by this reader (those in the tokens parsed from it,
+	 * for example) follow the edits: FilePos.current() and FileRange.current() give where
+	 * they are in the new text.  This reader drops its text and can't be used any more.
+	 * 
+	 * @param edits Changes to make, each relative to the text after the ones before it
+	 */
+	public ParserReader edit(List<TextEdit> edits) {
+		if(lookahead > 0 || start > 0) throw new IllegalStateException("Only a whole input in memory can be edited");
+		final StringBuilder text = new StringBuilder(size).append(chars, 0, size);
+		for(TextEdit edit : edits) {
+			if(edit.offset + edit.removedLength > text.length()) throw new IndexOutOfBoundsException(edit+" is past the end of the text");
+			text.replace(edit.offset, edit.offset + edit.removedLength, edit.insertedText);
+		}
+		final char[] newChars = new char[text.length()];
+		text.getChars(0, newChars.length, newChars, 0);
+		final ParserReader result = new ParserReader(newChars, newChars.length, filename);
+		lines.replaceWith(result.lines, edits.toArray(new TextEdit[edits.size()]));
+		return result;
+	}
+
+	/**
+	 * Get the reader for the latest version of the text a position was found in, or null
+	 * if it didn't come from a reader.
+	 */
+	public static ParserReader forPosition(FilePos pos) {
+		final LineIndex lines = pos.getLineIndex();
+		return lines == null ? null : lines.latest().reader;
+	}
+
+	/**
+	 * Get the offset the input starts at, which is 0 unless this reader is for a region().
+	 */
+	public int getStartOffset() {
+		return start;
+	}
+
+	/**
+	 * Get the index used to work out line and column numbers for this text.
+	 */
+	public LineIndex getLineIndex() {
+		return lines;
+	}
+
+	/**
+	 * Create a reader that reads its input as it goes, instead of all up front.
+	 * <p>
+	 * Only a window of the input is kept in memory: from the last offset given to release()
+	 * (or the mark or current position, if they're before it) to the lookahead past the
+	 * furthest position read.  The parser releases each position once all its stack heads
+	 * have moved past it.  A terminal can't see further than the lookahead, so tokens and
+	 * stretches of ignored input must be shorter than that.
+	 * <p>
+	 * The size of the input isn't known until its end is reached, and offsets are still
+	 * ints, so the input can't be longer than Integer.MAX_VALUE characters.
+	 * 
+	 * @param source Reader to read the input from; it's not closed
+	 * @param filename Name of the file to report in the file location information attached to tokens
+	 * @param lookahead How many characters past the current position to keep in memory
+	 */
+	public static ParserReader streaming(Reader source, String filename, int lookahead) {
+		if(lookahead <= 0) throw new IllegalArgumentException("Lookahead must be positive");
+		return new ParserReader(new char[Math.max(16, lookahead * 2)], 0, filename, source, lookahead);
+	}
+
+	/**
+	 * Create a reader that reads its input as it goes, with the default lookahead.
+	 * 
+	 * @see #streaming(Reader, String, int)
+	 */
+	public static ParserReader streaming(Reader source, String filename) {
+		return streaming(source, filename, DEFAULT_LOOKAHEAD);
+	}
+
+	/**
+	 * Create a new parser reader for a string.
+	 */
+	public ParserReader(String text, String filename) {
+		this(text.toCharArray(), text.length(), filename);
 	}
 
 	/**
 	 * Create a new parser reader.
 	 * 
-	 * @param delegate Reader to delegate to.  If it doesn't support marks, this will 
-	 *                 wrap it in a buffered reader capable of buffering the entire file.
-	 *                 If it does support marks, it should never invalidate the mark
-	 *                 no matter how many characters are read.  This calls mark() immediately
-	 *                 to allow "seeking" within the stream.
+	 * @param delegate Reader to read the file from.  The whole file is read into memory
+	 *                 immediately, so that seeking is cheap; the reader is not closed.
 	 * @param filename Name of the file to report in the file location information attached to tokens
-	 * @param fileSize Total length of the file
+	 * @param fileSize Total length of the file; if the reader ends early, the file is taken to end there
 	 * @throws IOException 
 	 */
 	public ParserReader(Reader delegate, String filename, int fileSize) throws IOException {
-		if(!delegate.markSupported()) {
-			delegate = new BufferedReader(delegate, fileSize);
+		this(readFully(delegate, fileSize), filename);
+	}
+
+	private ParserReader(CharBuffer buf, String filename) {
+		this(buf.array(), buf.position(), filename);
+	}
+
+	/**
+	 * Create a parser reader for a file, using the file's path as its name.
+	 * <p>
+	 * The file is memory mapped and decoded straight into the reader's char array, so
+	 * the decoded text is the only copy of the file on the heap.  Malformed input is
+	 * replaced, the same as InputStreamReader does.
+	 */
+	public ParserReader(File file, Charset charset) throws IOException {
+		this(decode(file, charset), file.getPath());
+	}
+
+	private static CharBuffer decode(File file, Charset charset) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IOException(file+" is too big to parse");
+			final ByteBuffer bytes = channel.map(MapMode.READ_ONLY, 0, size);
+			final CharsetDecoder decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			// Most charsets never decode to more chars than there are bytes, so this is usually big enough
+			CharBuffer chars = CharBuffer.allocate((int) Math.ceil(size * Math.min(1f, decoder.maxCharsPerByte())));
+			boolean flushing = false;
+			for(;;) {
+				final CoderResult result = flushing ? decoder.flush(chars) : decoder.decode(bytes, chars, true);
+				if(result.isOverflow()) {
+					final CharBuffer bigger = CharBuffer.allocate(chars.capacity() + Math.max(16, bytes.remaining()));
+					chars.flip();
+					chars = bigger.put(chars);
+				} else if(result.isUnderflow()) {
+					if(flushing)
+						return chars;
+					flushing = true;
+				} else {
+					result.throwException();
+				}
+			}
 		}
-		this.delegate = delegate;
-		this.filename = filename;
-		this.fileSize = fileSize;
-		mark();
+	}
+
+	private static CharBuffer readFully(Reader in, int size) throws IOException {
+		final CharBuffer buf = CharBuffer.allocate(size);
+		while(buf.hasRemaining() && in.read(buf) >= 0) {
+		}
+		return buf;
 	}
 
 	public void mark() throws IOException {
@@ -357,7 +508,7 @@ public class ParserReader extends Reader {
 	 * Return the file range from the given position to the current position.
 	 */
 	public FileRange getFileRange(FilePos from) {
-		return new FileRange(filename, from, current.toFilePos());
+		return new FileRange(filename, from, getFilePos());
 	}
 
 	public String getFilename() {
@@ -375,33 +526,82 @@ public class ParserReader extends Reader {
 	 * The input is positioned immediately after the last character matched.
 	 */
 	public String consume(Set<Terminal> ignore) throws IOException {
-		FilePos startStartPos = getFilePos();
-		FilePos startPos = startStartPos;
+		return skipIgnored(ignore).getText();
+	}
+
+	/**
+	 * Skip over any input matching the given terminals, leaving the input positioned
+	 * immediately after the last character matched.
+	 * <p>
+	 * The skipped text is only read if it's asked for, which has to be before the
+	 * start of it is released.
+	 */
+	public Layout skipIgnored(Set<Terminal> ignore) throws IOException {
+		final FilePos start = getFilePos();
+		int end = pos;
 		for(;;) {
 			for(Terminal term : ignore) {
 				term.match(this, null, null);
 			}
-			FilePos endPos = getFilePos();
-			if(endPos.equals(startPos)) {
-				// No forward movement, we're done
-				int chars = endPos.offset - startStartPos.offset;
-				seek(startStartPos);
-				return readString(chars);
+			if(pos == end)
+				break; // No forward movement, we're done
+			end = pos;
+		}
+		return new Layout(this, start, getFilePos());
+	}
+
+	/**
+	 * Tell the reader nothing before the given offset will be read again.
+	 * <p>
+	 * The mark moves up to the offset.  When streaming, the input before the offset
+	 * (or the current position, if that's earlier) can be dropped from memory, after
+	 * which it can't be seeked to or read.  The reader doesn't move.
+	 */
+	public void release(int offset) throws IOException {
+		if(offset > markPos)
+			markPos = offset;
+		final int keep = Math.min(markPos, pos);
+		if(lookahead > 0 && keep - base > chars.length / 2) {
+			// Copy into a new array, since views from charsFrom() may still be looking at the old one
+			synchronized(lines) {
+				lines.scanTo(keep);
+				final char[] newChars = new char[chars.length];
+				System.arraycopy(chars, keep - base, newChars, 0, end - keep);
+				chars = newChars;
+				base = keep;
 			}
-			startPos = endPos;
 		}
-		
+	}
+
+	/**
+	 * Get the text between two offsets, leaving the reader where it was.
+	 */
+	public String getText(int from, int to) throws IOException {
+		if(to > end) fill(to);
+		if(from < base || to > end || from > to) throw new IndexOutOfBoundsException("Can't get text from "+from+" to "+to);
+		return new String(chars, from - base, to - from);
+	}
+
+	/**
+	 * Get the text between two offsets as a view of the input rather than a copy, leaving
+	 * the reader where it was.
+	 * <p>
+	 * When streaming the text is copied after all, since a view would keep the
+	 * buffer it's in from being let go.
+	 */
+	public CharSequence getChars(int from, int to) throws IOException {
+		if(lookahead > 0 || from == to)
+			return getText(from, to);
+		if(from < base || to > end || from > to) throw new IndexOutOfBoundsException("Can't get text from "+from+" to "+to);
+		return new CharSlice(chars, from - base, to - from);
 	}
 
 	public String readString(int chars) throws IOException {
-		char[] buf = new char[chars];
-		int remaining = chars;
-		while(remaining > 0) {
-			int didRead = read(buf);
-			if(didRead == -1) throw new EOFException();
-			remaining -= didRead;
-		}
-		return new String(buf); 
+		fill(pos + chars);
+		if(chars > end - pos) throw new EOFException();
+		final String result = new String(this.chars, pos - base, chars);
+		advance(chars);
+		return result;
 	}
 
 	/**
@@ -416,28 +616,22 @@ public class ParserReader extends Reader {
 	 * @return True if the next characters match the string, or if the string was empty
 	 */
 	public boolean startsWith(String expected) throws IOException {
-		if(expected.length() > remaining())
-			return false;
-		FilePos start = getFilePos();
 		final int len = expected.length();
+		fill(pos + len);
+		if(len > end - pos)
+			return false;
 		for(int i=0; i < len; i++) {
-			int ch = read();
-			if(ch != expected.charAt(i)) {
-				seek(start);
+			if(chars[pos-base+i] != expected.charAt(i))
 				return false;
-			}
 		}
+		advance(len);
 		return true;
 	}
 	
 	public boolean startsWith(char expected) throws IOException {
-		if(remaining() == 0)
+		if(remaining() == 0 || chars[pos-base] != expected)
 			return false;
-		FilePos start = getFilePos();
-		if(read() != expected) {
-			seek(start);
-			return false;
-		}
+		pos++;
 		return true;
 	}
 }
@@ -0,0 +1,44 @@
+package felix.parser.util;
+
+/**
+ * A change to a text: some characters removed at an offset, and others inserted in
+ * their place.
+ */
+public class TextEdit {
+	public final int offset;
+	public final int removedLength;
+	public final String insertedText;
+
+	public TextEdit(int offset, int removedLength, String insertedText) {
+		super();
+		if(insertedText == null) throw new NullPointerException();
+		if(offset < 0 || removedLength < 0) throw new IndexOutOfBoundsException("Bad edit at "+offset+" removing "+removedLength);
+		this.offset = offset;
+		this.removedLength = removedLength;
+		this.insertedText = insertedText;
+	}
+
+	/**
+	 * Change in the length of the text.
+	 */
+	public int delta() {
+		return insertedText.length() - removedLength;
+	}
+
+	/**
+	 * Find where an offset in the text before this edit ends up after it.  Offsets
+	 * inside the removed text end up after the inserted text.
+	 */
+	public int map(int offset) {
+		if(offset >= this.offset + removedLength)
+			return offset + delta();
+		if(offset > this.offset)
+			return this.offset + insertedText.length();
+		return offset;
+	}
+
+	@Override
+	public String toString() {
+		return "TextEdit [offset "+offset+" removed "+removedLength+" inserted \""+insertedText+"\"]";
+	}
+}
@@ -7,31 +7,58 @@ import static felix.parser.glr.grammar.Symbols.re;
 import static felix.parser.glr.grammar.Symbols.rule;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
+import felix.parser.glr.automaton.Action;
+import felix.parser.glr.automaton.Automaton;
+import felix.parser.glr.automaton.FirstFollow;
+import felix.parser.glr.automaton.Lookahead;
+import felix.parser.glr.automaton.ParseTable;
+import felix.parser.glr.automaton.ParseSession;
+import felix.parser.glr.automaton.Scanner;
 import felix.parser.glr.grammar.Grammar;
 import felix.parser.glr.grammar.KeywordTerminal;
 import felix.parser.glr.grammar.Marker;
 import felix.parser.glr.grammar.NonTerminal;
+import felix.parser.glr.grammar.PatternTerminal;
 import felix.parser.glr.grammar.Priority;
 import felix.parser.glr.grammar.Sequence;
 import felix.parser.glr.grammar.Symbol;
 import felix.parser.glr.grammar.SymbolRef;
 import felix.parser.glr.grammar.Terminal;
+import felix.parser.glr.parsetree.CompactTree;
 import felix.parser.glr.parsetree.Element;
 import felix.parser.glr.parsetree.Node;
+import felix.parser.glr.parsetree.ParseForest;
 import felix.parser.glr.parsetree.Token;
+import felix.parser.util.CharSlice;
 import felix.parser.util.FilePos;
 import felix.parser.util.FileRange;
+import felix.parser.util.LineIndex;
 import felix.parser.util.ParserReader;
+import felix.parser.util.TextEdit;
  
 public class BasicTests {
 	private static final String TEST_FILENAME = "<string>";
@@ -323,4 +350,531 @@ public class BasicTests {
 				tok(src, ID, 8, "e")
 				), list);
 	}
+	
+	@Test
+	public void parseAmbiguousSum() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(NUM));
+		Grammar grammar = new Grammar(expr, ignore);
+		// Every way of bracketing the sum should be found, i.e. the Catalan numbers
+		int[] expectedCounts = {2, 5, 14};
+		String src = "1+2";
+		for(int expectedCount : expectedCounts) {
+			src = src + "+" + (expectedCount);
+			try {
+				grammar.parse(src, TEST_FILENAME);
+			} catch(AmbiguousInputException e) {
+				assertEquals(src, expectedCount, e.getAlternatives().length);
+				continue;
+			}
+			throw new AssertionError("Expected ambiguity for "+src);
+		}
+	}
+	
+	@Test
+	public void parseAmbiguousSumForest() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(NUM));
+		StringBuffer src = new StringBuffer("0");
+		final int terms = 30;
+		for(int i=1; i < terms; i++) {
+			src.append('+').append(i);
+		}
+		ParseForest forest = new Grammar(expr, ignore).parseForest(src.toString(), TEST_FILENAME);
+		
+		// Catalan number for the count of operators
+		BigInteger catalan = BigInteger.ONE;
+		for(int n=0; n < terms-1; n++) {
+			catalan = catalan.multiply(BigInteger.valueOf(2*(2*n+1))).divide(BigInteger.valueOf(n+2));
+		}
+		assertEquals(catalan, forest.count());
+		
+		// The first and last trees are the left and right leaning ones
+		Element first = (Element) forest.get(0);
+		Element last = (Element) forest.get(catalan.subtract(BigInteger.ONE));
+		assertEquals(src.toString(), first.getFileRange().length(), src.length());
+		assertEquals(1, ((Element)first.children[2]).children.length);
+		assertEquals(1, ((Element)last.children[0]).children.length);
+		
+		// Trees come out one at a time, and each only once
+		Set<String> seen = new HashSet<>();
+		Iterator<Node> trees = forest.iterator();
+		for(int i=0; i < 100; i++) {
+			assertTrue(seen.add(trees.next().toString()));
+		}
+	}
+	
+	@Test
+	public void saveAndLoadAutomaton() throws Exception {
+		String src = "12+34*56+78";
+		Symbol _expr = new SymbolRef("Expr");
+		Priority ps = new Priority("ps");
+		Priority pp = new Priority("pp", ps);
+		Priority pi = new Priority("pi", pp, ps);
+		NonTerminal expr = nt("Expr", 
+				rule(ps, _expr.gt(ps), PLUS, _expr.ge(ps)), 
+				rule(pp, _expr.gt(pp), TIMES, _expr.ge(pp)), 
+				rule(pi, NUM));
+		Grammar grammar = new Grammar(expr, ignore);
+		Automaton built = new Automaton().build(grammar);
+		ByteArrayOutputStream saved = new ByteArrayOutputStream();
+		built.save(grammar, saved);
+		
+		Automaton loaded = Automaton.load(grammar, ByteBuffer.wrap(saved.toByteArray()));
+		assertEquals(built.table, loaded.table);
+		assertEqualTrees(built.parse(new ParserReader(new StringReader(src), TEST_FILENAME, src.length())),
+				loaded.parse(new ParserReader(new StringReader(src), TEST_FILENAME, src.length())));
+		
+		// A table saved for some other grammar must not be used
+		Grammar other = new Grammar(nt("Expr", rule(ps, _expr, PLUS, _expr), rule(pi, NUM)), ignore);
+		try {
+			Automaton.load(other, ByteBuffer.wrap(saved.toByteArray()));
+		} catch(IOException e) {
+			return;
+		}
+		throw new AssertionError("Loaded an automaton saved for a different grammar");
+	}
+	
+	@Test
+	public void reuseParser() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		Priority ps = new Priority("ps");
+		Priority pi = new Priority("pi", ps);
+		NonTerminal expr = nt("Expr", rule(ps, _expr.gt(ps), PLUS, _expr.ge(ps)), rule(pi, NUM));
+		Parser parser = new Grammar(expr, ignore).getParser();
+		
+		// A new grammar for the same (now resolved) symbols gets the same parser
+		assertTrue(parser == new Grammar(expr, ignore).getParser());
+		assertTrue(parser != new Grammar(expr, new TreeSet<Terminal>()).getParser());
+		assertEqualTrees(parser.parse("1 + 2", TEST_FILENAME), expr.parse("1 + 2", ignore));
+		assertEqualTrees(parser.parse("3+4", TEST_FILENAME), expr.parse("3+4", ignore));
+		
+		// Symbol.parse() gets its parser from the same cache
+		assertTrue(parser == expr.getParser(ignore));
+		assertTrue(expr.getParser(ignore) == expr.getParser(new TreeSet<>(ignore)));
+	}
+	
+	@Test
+	public void lookaheadFromFollowSets() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(_expr, TIMES, _expr), rule(NUM));
+		NonTerminal stmt = nt("Stmt", rule(expr, opt(COMMA)));
+		Grammar grammar = new Grammar(stmt, ignore);
+		FirstFollow sets = new FirstFollow(new Automaton().build(grammar), stmt);
+		assertEquals(new HashSet<Terminal>(Arrays.asList(NUM)), sets.getFirst(stmt));
+		assertEquals(new HashSet<Terminal>(Arrays.asList(PLUS, TIMES, COMMA, Marker.NIL, Marker.END_OF_FILE)), sets.getFollow(expr));
+		
+		Lookahead lookahead = new Lookahead(sets.getFollow(expr));
+		assertTrue(lookahead.allows('+'));
+		assertTrue(lookahead.allows(-1));
+		assertTrue(!lookahead.allows('1'));
+		assertTrue(lookahead.allows('\u4e00')); // Left to the match
+		assertTrue(new Lookahead(sets.getFirst(stmt)).allows('1'));
+		assertEquals(2, ((Element)grammar.parse("12 ,", TEST_FILENAME)).children.length);
+		assertEquals(2, ((Element)grammar.parse("12", TEST_FILENAME)).children.length);
+	}
+	
+	@Test
+	public void scanAllTerminalsAtOnce() throws Exception {
+		KeywordTerminal INC = kw("++");
+		Scanner scanner = new Scanner(Arrays.<Terminal>asList(PLUS, INC, NUM, ID, TIMES));
+		assertArrayEquals(new int[] {1, 2, -1, -1, -1}, scanner.scan("++1", null));
+		assertArrayEquals(new int[] {1, -1, -1, -1, -1}, scanner.scan("+1", null));
+		assertArrayEquals(new int[] {-1, -1, 3, -1, -1}, scanner.scan("123*", null));
+		assertArrayEquals(new int[] {-1, -1, -1, -1, -1}, scanner.scan("", null));
+	}
+	
+	@Test
+	public void parseInParallel() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(_expr, TIMES, _expr), rule(NUM));
+		Grammar grammar = new Grammar(expr, ignore);
+		StringBuffer src = new StringBuffer("0");
+		for(int i=1; i < 12; i++) {
+			src.append(i % 3 == 0 ? " * " : " + ").append(i);
+		}
+		final String input = src.toString();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ParseForest sequential = grammar.parseForest(input, TEST_FILENAME);
+			for(int run=0; run < 3; run++) {
+				// Go parallel even for small frontiers, so that it actually happens
+				ParseForest parallel = new ParseSession(grammar.getParser().automaton,
+						new ParserReader(new StringReader(input), TEST_FILENAME, input.length())).parallel(pool, 1).parseForest();
+				assertEquals(sequential.count(), parallel.count());
+				assertEqualTrees(sequential.get(0), parallel.get(0));
+				assertEqualTrees(sequential.get(sequential.count().subtract(BigInteger.ONE)), parallel.get(parallel.count().subtract(BigInteger.ONE)));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void lineAndColumnOnDemand() throws Exception {
+		ParserReader reader = new ParserReader("ab\ncd\n\nef", TEST_FILENAME);
+		reader.seek(9);
+		FilePos end = reader.getFilePos();
+		assertEquals(4, end.getLine());
+		assertEquals(3, end.getCol());
+		reader.seek(3);
+		assertEquals(2, reader.getCurrentLineNumber());
+		assertEquals(1, reader.getCurrentColumnNumber());
+		reader.seek(2);
+		assertEquals(1, reader.getFilePos().getLine());
+		assertEquals(3, reader.getFilePos().getCol());
+		reader.seek(6);
+		assertEquals("line 3 col 1 offset 6", reader.getFilePos().toString());
+	}
+
+	@Test
+	public void parseMappedFile() throws Exception {
+		File file = File.createTempFile("mapped", ".txt");
+		try {
+			Files.write(file.toPath(), "\u00e9\u00e9 12 + 34".getBytes(StandardCharsets.UTF_8));
+			ParserReader reader = new ParserReader(file, StandardCharsets.UTF_8);
+			assertEquals(10, reader.fileSize);
+			assertEquals("\u00e9\u00e9 12", reader.readString(5));
+
+			Symbol _expr = new SymbolRef("Expr");
+			NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(NUM));
+			Grammar grammar = new Grammar(expr, ignore);
+			Files.write(file.toPath(), "12 +\n34".getBytes(StandardCharsets.UTF_8));
+			assertEqualTrees(grammar.parse("12 +\n34", file.getPath()), grammar.parse(file, "UTF-8"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void parseStreaming() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, NUM), rule(NUM));
+		Grammar grammar = new Grammar(expr, ignore);
+		StringBuffer src = new StringBuffer("0");
+		for(int i=1; i < 500; i++) {
+			src.append(i % 10 == 0 ? " +\n" : " + ").append(i);
+		}
+		final String input = src.toString();
+		ParserReader reader = ParserReader.streaming(new StringReader(input), TEST_FILENAME, 16);
+		assertEquals(-1, reader.knownSize());
+		Node streamed = grammar.parse(reader);
+		assertEqualTrees(grammar.parse(input, TEST_FILENAME), streamed);
+		assertEquals(-1, reader.fileSize);
+		assertEquals(input.length(), reader.knownSize());
+		assertEquals(50, reader.getCurrentLineNumber());
+		try {
+			reader.seek(0);
+			fail("The start of the input should have been released");
+		} catch(IndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void reparseAfterEdits() throws Exception {
+		Symbol _stmts = new SymbolRef("Stmts");
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, NUM), rule(NUM));
+		NonTerminal stmt = nt("Stmt", rule(ID, kw("="), expr, kw(";")));
+		NonTerminal stmts = nt("Stmts", rule(_stmts, stmt), rule(stmt));
+		Grammar grammar = new Grammar(stmts, ignore);
+		String src = "a = 1 + 2;\nb = 3;\nc = 4 + 5;";
+		Element previous = (Element) grammar.parse(src, TEST_FILENAME);
+		Node lastStmt = previous.getChild(1);
+		Set<Node> seen = new HashSet<Node>(Arrays.asList(lastStmt));
+
+		// Change "3" to "30 + 6"; only the second statement is parsed again
+		String edited = "a = 1 + 2;\nb = 30 + 6;\nc = 4 + 5;";
+		Node reparsed = grammar.reparse(previous, Arrays.asList(new TextEdit(16, 0, "0"), new TextEdit(17, 0, " + 6")));
+		assertEqualTrees(grammar.parse(edited, TEST_FILENAME), reparsed);
+		assertTrue(reparsed.getChild(1) == lastStmt);
+		// Moving the reused statement doesn't change its hash
+		assertTrue(seen.contains(((Element)grammar.parse(edited, TEST_FILENAME)).getChild(1)));
+		assertEquals(edited.indexOf('c'), lastStmt.getFileRange().getStartOffset());
+		assertEquals(3, lastStmt.getFileRange().start.getLine());
+		// Though the same text somewhere else is still a different token
+		assertTrue(!tok("x x", ID, 0, "x").equals(tok("x x", ID, 2, "x")));
+
+		// Adding a statement changes the structure, so it falls back to parsing everything
+		String added = "a = 1 + 2;\nb = 30 + 6; d = 7;\nc = 4 + 5;";
+		reparsed = grammar.reparse(reparsed, Arrays.asList(new TextEdit(edited.indexOf('\n', 11), 0, " d = 7;")));
+		assertEqualTrees(grammar.parse(added, TEST_FILENAME), reparsed);
+
+		// The statements as a flattened list, which must not be flattened again when rebuilt
+		Grammar listGrammar = new Grammar(new Sequence("StmtList", stmt, Sequence.Mode.ONE_OR_MORE), ignore);
+		previous = (Element) listGrammar.parse(src, TEST_FILENAME);
+		lastStmt = previous.getChild(2);
+		reparsed = listGrammar.reparse(previous, Arrays.asList(new TextEdit(16, 0, "0"), new TextEdit(17, 0, " + 6")));
+		assertEqualTrees(listGrammar.parse(edited, TEST_FILENAME), reparsed);
+		assertEquals(3, reparsed.getChildCount());
+		assertTrue(reparsed.getChild(2) == lastStmt);
+	}
+
+	@Test
+	public void compactTree() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, NUM), rule(NUM));
+		NonTerminal stmt = nt("Stmt", rule(ID, kw("="), expr, kw(";")));
+		Grammar grammar = new Grammar(stmt, ignore);
+		Node tree = grammar.parse("a =\n 1 + 2 /* two */ ;", TEST_FILENAME);
+		CompactTree compact = new CompactTree(tree);
+		assertEqualTrees(tree, compact.toNode(0));
+
+		CompactTree.View root = compact.getRoot();
+		assertEquals(tree.toString(), root.toString());
+		assertEquals(tree.getTokens(), root.getTokens());
+		CompactTree.View two = root.getChild(2).getChild(2);
+		assertEquals("2", two.getText().toString());
+		assertEquals(2, two.getFileRange().start.getLine());
+		assertEquals(root.getChild(2), two.getParent());
+		assertEquals(" /* two */ ", compact.getIgnoredPrefix(compact.getChild(0, 3)).toString());
+		assertEquals(null, root.getParent());
+	}
+
+	@Test
+	public void tokenTextIsAView() throws Exception {
+		Parser.debug = false; // Printing the tokens would turn their text into Strings
+		Grammar grammar = new Grammar(nt("Expr", rule(NUM, PLUS, NUM)), ignore);
+		Token token = (Token) grammar.parse("  12 + 345", TEST_FILENAME).getChild(2);
+		assertTrue(token.getTextChars() instanceof CharSlice);
+		assertTrue(token.getIgnoredPrefixChars() instanceof CharSlice);
+		assertEquals(" ", token.getIgnoredPrefixChars().toString());
+		assertEquals(new Token(token.getFileRange(), NUM, "345", " "), token);
+		assertEquals("345", token.getText());
+		assertTrue(token.getText() == token.getTextChars());
+	}
+
+	@Test
+	public void symbolNumbers() throws Exception {
+		Symbol ref = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(ref, PLUS, NUM), rule(NUM));
+		Priority p = new Priority("p");
+		Symbol withReq = ref.gt(p);
+		assertEquals(expr, ref);
+		assertEquals(expr.hashCode(), ref.hashCode());
+		assertEquals(0, expr.compareTo(ref));
+		assertTrue(!withReq.equals(expr));
+		assertTrue(ref.compatibleWith(expr, p));
+		assertTrue(withReq.hasPriorityCheck() && !ref.hasPriorityCheck());
+		assertTrue(!NUM.equals(PLUS));
+		assertTrue(NUM.compareTo(PLUS) > 0);
+		assertEquals(NUM, re("NUM", "[0-9]"));
+
+		// The parse table numbers the symbols it uses from zero, whatever else has been made
+		ParseTable table = new Automaton().build(new Grammar(expr, ignore)).getParseTable();
+		assertEquals(table.getSymbolNumber(expr), table.getSymbolNumber(ref));
+		assertTrue(table.getSymbolNumber(NUM) != table.getSymbolNumber(expr));
+		for(Symbol s : new Symbol[] { expr, NUM, PLUS }) {
+			final int n = table.getSymbolNumber(s);
+			assertTrue(n >= 0 && n < 10);
+		}
+		assertEquals(ParseTable.NO_NUMBER, table.getSymbolNumber(nt("Unused", rule(NUM))));
+	}
+
+	@Test
+	public void actionsSplitByKind() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, NUM), rule(NUM));
+		ParseTable table = new Automaton().build(new Grammar(expr, ignore)).getParseTable();
+		for(int s=0; s < table.states.length; s++) {
+			ArrayList<Action> split = new ArrayList<>();
+			split.addAll(Arrays.asList(table.reduces[s]));
+			split.addAll(Arrays.asList(table.shifts[s]));
+			split.addAll(Arrays.asList(table.accepts[s]));
+			List<Action> row = Arrays.asList(table.actions).subList(table.rowStart[s], table.rowStart[s+1]);
+			assertEquals(new HashSet<>(row), new HashSet<>(split));
+			assertEquals(row.size(), split.size());
+		}
+		assertEquals(1, table.shifts[0].length);
+	}
+
+	@Test
+	public void priorityRelations() throws Exception {
+		Priority ps = new Priority("ps");
+		Priority pp = new Priority("pp", ps);
+		Priority pi = new Priority("pi", pp, ps);
+		assertTrue(pp.greaterThan(ps));
+		assertTrue(!ps.greaterThan(pp));
+		assertTrue(pi.greaterThan(ps));
+		assertTrue(ps.lessThan(pi));
+		assertTrue(pp.requireGreaterThan().check(pi));
+		assertTrue(!pp.requireGreaterThan().check(pp));
+		assertTrue(pp.requireGreaterThanOrEqualTo().check(pp));
+		assertTrue(pp.requireGreaterThan() == pp.requireGreaterThan());
+		assertEquals(ps, new Priority("ps"));
+		assertTrue(new Priority("pp2", new Priority("ps")).greaterThan(ps));
+
+		// A parse table numbers just the priorities it uses, from zero
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(pp, _expr.gt(pp), PLUS, _expr.ge(pp)), rule(pi, NUM));
+		ParseTable table = new Automaton().build(new Grammar(expr, ignore)).getParseTable();
+		assertEquals(0, table.getPriorityNumber(Priority.DEFAULT));
+		assertTrue(table.getPriorityNumber(pp) > 0 && table.getPriorityNumber(pp) < table.getPriorityCount());
+		assertTrue(table.getPriorityNumber(pi) > 0 && table.getPriorityNumber(pi) < table.getPriorityCount());
+		assertEquals(ParseTable.NO_NUMBER, table.getPriorityNumber(ps));
+		// The left operand must be higher than a sum, so sums group to the right
+		assertEquals("Expr(Expr(NUM(1)), +, Expr(Expr(NUM(2)), +, Expr(NUM(3))))", expr.parse("1 + 2 + 3", ignore).toString());
+	}
+
+	@Test
+	public void ambiguousSumsArePacked() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(NUM));
+		StringBuilder src = new StringBuilder("1");
+		for(int i=1; i < 12; i++) {
+			src.append("+1");
+		}
+		ParseForest forest = Parser.forGrammar(new Grammar(expr, ignore)).parseForest(new ParserReader(src.toString(), TEST_FILENAME));
+		// One derivation of the root per place to split the sum, and Catalan(11) trees in all
+		assertEquals(11, ((Element)forest.root).getDerivationCount());
+		assertEquals(BigInteger.valueOf(58786), forest.count());
+	}
+
+	@Test
+	public void budgetStopsParse() throws Exception {
+		Symbol _expr = new SymbolRef("Expr");
+		NonTerminal expr = nt("Expr", rule(_expr, PLUS, _expr), rule(NUM));
+		StringBuilder src = new StringBuilder("1");
+		for(int i=1; i < 12; i++) {
+			src.append("+1");
+		}
+		Parser parser = Parser.forGrammar(new Grammar(expr, ignore));
+		// A generous budget doesn't change the result
+		ParseForest forest = parser.parseForest(new ParserReader(src.toString(), TEST_FILENAME), new ParseBudget().actions(1000000).heads(1000));
+		assertEquals(BigInteger.valueOf(58786), forest.count());
+		try {
+			parser.parseForest(new ParserReader(src.toString(), TEST_FILENAME), new ParseBudget().actions(50));
+			fail("Expected the budget to run out");
+		} catch(ParseBudgetExceededException e) {
+			assertEquals(ParseBudgetExceededException.Limit.ACTIONS, e.limit);
+			assertEquals(51, e.actions);
+			assertTrue(e.peakHeads > 0);
+		}
+		ParseBudget cancelled = new ParseBudget();
+		cancelled.cancel();
+		try {
+			parser.parseForest(new ParserReader(src.toString(), TEST_FILENAME), cancelled);
+			fail("Expected the parse to be cancelled");
+		} catch(ParseBudgetExceededException e) {
+			assertEquals(ParseBudgetExceededException.Limit.CANCELLED, e.limit);
+			assertEquals(0, e.actions);
+		}
+	}
+
+	@Test
+	public void ambiguityInListPrefix() throws Exception {
+		Parser.debug = false;
+		// A derivation packed into the start of a list after the list was extended still reaches the longer list
+		Sequence ids = new Sequence("ids", ID, Sequence.Mode.ONE_OR_MORE);
+		NonTerminal pair = nt("Pair", rule(ID, ID));
+		String src = "a b c";
+		Token a = tok(src, ID, 0, "a"), b = tok(src, ID, 2, "b"), c = tok(src, ID, 4, "c");
+		Element prefix = new Element(ids, a, b);
+		Element longer = (Element) ids.build(prefix, c);
+		longer.link(longer);
+		Element dropped = (Element) ids.build(prefix, c);
+		prefix.pack(new Node[] {pair.build(a, b)});
+		assertEquals(2, longer.getDerivationCount());
+		assertEquals(2, longer.getDerivation(1).length);
+		// One that was never kept isn't linked
+		assertEquals(1, dropped.getDerivationCount());
+
+		// The same through the parser: each way to split the list into items is kept
+		NonTerminal item = nt("Item", rule(ID), rule(ID, ID));
+		Parser parser = Parser.forGrammar(new Grammar(new Sequence("items", item, Sequence.Mode.ONE_OR_MORE), ignore));
+		ParseForest forest = parser.parseForest(new ParserReader("a b c d", TEST_FILENAME));
+		assertEquals(BigInteger.valueOf(5), forest.count());
+		try {
+			parser.parse(new ParserReader("a b c d", TEST_FILENAME));
+			fail("Expected the list to be ambiguous");
+		} catch(AmbiguousInputException e) {
+			assertEquals(BigInteger.valueOf(5), e.getForest().count());
+		}
+		// And with the reductions spread over threads
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for(int run=0; run < 3; run++) {
+				ParseForest parallel = new ParseSession(parser.automaton, new ParserReader("a b c d", TEST_FILENAME)).parallel(pool, 1).parseForest();
+				assertEquals(BigInteger.valueOf(5), parallel.count());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void deepForest() throws Exception {
+		// A forest as deep as a long input is walked without running out of stack
+		NonTerminal list = nt("List", rule(ID));
+		NonTerminal other = nt("Other", rule(ID));
+		Token x = tok("x", ID, 0, "x");
+		Element bottom = new Element(list, x);
+		bottom.pack(new Node[] {new Element(other, x)});
+		Element deep = bottom;
+		for(int i=0; i < 100000; i++) {
+			deep = new Element(list, deep.getFileRange(), deep);
+		}
+		ParseForest forest = new ParseForest(deep);
+		assertEquals(BigInteger.valueOf(2), forest.count());
+		Node last = forest.get(1);
+		int depth = 0;
+		while(last.symbol.equals(list)) {
+			last = last.getChild(0);
+			depth++;
+		}
+		assertEquals(100001, depth);
+		assertEquals(other, last.symbol);
+
+		// And packed and unpacked again
+		Node unpacked = new CompactTree(deep).toNode(0);
+		for(depth=0; unpacked instanceof Element; depth++) {
+			unpacked = unpacked.getChild(0);
+		}
+		assertEquals(100001, depth);
+		assertEquals(x.getText(), ((Token)unpacked).getText());
+	}
+
+	@Test
+	public void lookaheadForSupplementaryCharacters() throws Exception {
+		Parser.debug = false;
+		// The next char is one UTF-16 unit, so the first half of a pair can't rule a pattern out
+		PatternTerminal emoji = new PatternTerminal("EMOJI", "[\\x{1F600}-\\x{1F64F}]+");
+		assertTrue(emoji.canStartWith(0xD83D));
+		assertTrue(!emoji.canStartWith('a'));
+		NonTerminal faces = nt("Faces", rule(ID, emoji));
+		String src = "smile \uD83D\uDE00\uD83D\uDE03";
+		Element parsed = (Element) faces.parse(src, ignore);
+		assertEquals("\uD83D\uDE00\uD83D\uDE03", ((Token)parsed.children[1]).getText());
+	}
+
+	@Test
+	public void offsetsFollowManyEdits() throws Exception {
+		// Positions from the first version map through every later one, however the edits combine
+		Random random = new Random(42);
+		ParserReader reader = new ParserReader("0123456789abcdefghij\nklmnopqrstuvwxyz", TEST_FILENAME);
+		LineIndex first = reader.getLineIndex();
+		int length = reader.fileSize;
+		int[] expected = new int[length + 1];
+		for(int i=0; i <= length; i++) {
+			expected[i] = i;
+		}
+		for(int round=0; round < 200; round++) {
+			int offset = random.nextInt(length + 1);
+			int removed = random.nextInt(Math.min(4, length - offset) + 1);
+			TextEdit edit = new TextEdit(offset, removed, "xyz".substring(random.nextInt(4)));
+			reader = reader.edit(Arrays.asList(edit));
+			length += edit.delta();
+			for(int i=0; i < expected.length; i++) {
+				expected[i] = edit.map(expected[i]);
+			}
+			if(round % 7 == 0) {
+				for(int i=0; i < expected.length; i++) {
+					assertEquals(expected[i], first.map(i));
+				}
+			}
+		}
+		assertTrue(first.latest() == reader.getLineIndex());
+		assertEquals(expected[21], first.getFilePos(21).current().offset);
+	}
 }